@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +50,6 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
 	}
 
 	/**
@@ -119,16 +116,65 @@ public final class Interrupt {
 		return !enabled;
 	}
 
-	private void schedule(long when, String type, Runnable handler) {
+	/**
+	 * Advance simulated time to just before the next pending interrupt, as if
+	 * the CPU had been halted until then. The time skipped is charged as kernel
+	 * time, exactly as if the caller had spun, repeatedly enabling and
+	 * disabling interrupts, until the interrupt was about to occur. The
+	 * interrupt itself occurs when interrupts are next enabled.
+	 * 
+	 * <p>
+	 * Interrupts must be disabled, and the caller must have nothing useful to
+	 * do until an interrupt occurs.
+	 */
+	public void idle() {
+		Lib.assertTrue(!enabled);
+
+		long ticks = getTicksUntilDue();
+		if (ticks == Long.MAX_VALUE || ticks <= Stats.KernelTick)
+			return;
+
+		// leave the tick that reaches the interrupt to the caller
+		long skipped = (ticks - 1) / Stats.KernelTick * Stats.KernelTick;
+
+		Lib.debug(dbgInt, "Idling for " + skipped + " ticks");
+
+		privilege.stats.kernelTicks += skipped;
+		privilege.stats.totalTicks += skipped;
+	}
+
+	private long schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+		PendingInterrupt toOccur = allocate(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		add(toOccur);
+
+		return ((long) toOccur.generation << 32) | toOccur.slot;
+	}
+
+	private boolean cancel(long handle) {
+		int slot = (int) handle;
+		int generation = (int) (handle >>> 32);
+
+		if (slot < 0 || slot >= numSlots)
+			return false;
+
+		PendingInterrupt toCancel = slots[slot];
+		if (toCancel.generation != generation || toCancel.index == -1)
+			return false;
+
+		Lib.debug(dbgInt, "Cancelling the " + toCancel.type
+				+ " interrupt handler at time = " + toCancel.time);
+
+		remove(toCancel.index);
+		free(toCancel);
+
+		return true;
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +197,26 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long getTicksUntilDue() {
+		// tick one at a time so each tick can be traced
+		if (Lib.test(dbgInt))
+			return 0;
+
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		return pending[0].time - privilege.stats.totalTicks;
+	}
+
+	private void chargeUserTicks(long count) {
+		Stats stats = privilege.stats;
+
+		Lib.assertTrue(count * Stats.UserTick < getTicksUntilDue());
+
+		stats.userTicks += count * Stats.UserTick;
+		stats.totalTicks += count * Stats.UserTick;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,27 +225,31 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
+		if (numPending == 0)
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pending[0].time > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (numPending > 0 && pending[0].time <= time) {
+			PendingInterrupt next = pending[0];
+			remove(0);
 
 			Lib.assertTrue(next.time <= time);
 
+			// the handler may schedule more interrupts, reusing this node
+			String type = next.type;
+			Runnable handler = next.handler;
+			free(next);
+
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,8 +260,12 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		PendingInterrupt[] sorted = new PendingInterrupt[numPending];
+		System.arraycopy(pending, 0, sorted, 0, numPending);
+		Arrays.sort(sorted);
+
+		for (int i = 0; i < sorted.length; i++) {
+			PendingInterrupt toOccur = sorted[i];
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -199,12 +273,170 @@ public final class Interrupt {
 		System.out.println("  (end of list)");
 	}
 
+	/**
+	 * Return an unused pending interrupt node, taken from the free list if
+	 * possible.
+	 */
+	private PendingInterrupt allocate(long time, String type, Runnable handler) {
+		PendingInterrupt toOccur = freeList;
+
+		if (toOccur != null) {
+			freeList = toOccur.nextFree;
+			toOccur.nextFree = null;
+		}
+		else {
+			if (numSlots == slots.length) {
+				PendingInterrupt[] newSlots = new PendingInterrupt[numSlots * 2];
+				System.arraycopy(slots, 0, newSlots, 0, numSlots);
+				slots = newSlots;
+			}
+
+			toOccur = new PendingInterrupt(numSlots);
+			slots[numSlots++] = toOccur;
+		}
+
+		toOccur.time = time;
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.id = numPendingInterruptsCreated++;
+
+		return toOccur;
+	}
+
+	/**
+	 * Return a node that is no longer pending to the free list. Outstanding
+	 * handles for it become invalid.
+	 */
+	private void free(PendingInterrupt toOccur) {
+		toOccur.type = null;
+		toOccur.handler = null;
+		toOccur.generation++;
+
+		toOccur.nextFree = freeList;
+		freeList = toOccur;
+	}
+
+	/** Add a node to the heap of pending interrupts. */
+	private void add(PendingInterrupt toOccur) {
+		if (numPending == pending.length) {
+			PendingInterrupt[] newPending = new PendingInterrupt[numPending * 2];
+			System.arraycopy(pending, 0, newPending, 0, numPending);
+			pending = newPending;
+		}
+
+		siftUp(numPending++, toOccur);
+	}
+
+	/** Remove the node at the specified position in the heap. */
+	private void remove(int index) {
+		PendingInterrupt removed = pending[index];
+		PendingInterrupt last = pending[--numPending];
+		pending[numPending] = null;
+
+		if (index < numPending) {
+			siftDown(index, last);
+			if (pending[index] == last)
+				siftUp(index, last);
+		}
+
+		removed.index = -1;
+	}
+
+	private void siftUp(int index, PendingInterrupt toOccur) {
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (pending[parent].compareTo(toOccur) <= 0)
+				break;
+
+			place(index, pending[parent]);
+			index = parent;
+		}
+
+		place(index, toOccur);
+	}
+
+	private void siftDown(int index, PendingInterrupt toOccur) {
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= numPending)
+				break;
+
+			if (child + 1 < numPending
+					&& pending[child + 1].compareTo(pending[child]) < 0)
+				child++;
+
+			if (toOccur.compareTo(pending[child]) <= 0)
+				break;
+
+			place(index, pending[child]);
+			index = child;
+		}
+
+		place(index, toOccur);
+	}
+
+	private void place(int index, PendingInterrupt toOccur) {
+		pending[index] = toOccur;
+		toOccur.index = index;
+	}
+
+	/**
+	 * Test that pending interrupts fire in order of time, and in the order
+	 * they were scheduled when due at the same time, that a cancelled
+	 * interrupt never fires, and that cancelling through a stale handle, after
+	 * its node has been reused, leaves the new interrupt pending.
+	 */
+	public static void selfTest() {
+		Interrupt interrupt = Machine.interrupt();
+		final int[] fired = new int[8];
+		final int[] numFired = new int[1];
+
+		boolean intStatus = interrupt.disable();
+		long start = Machine.timer().getTime();
+
+		// scheduled out of order; 2 and 3 are due at the same time
+		long[] delays = { 40, 10, 30, 30, 20, 50 };
+		long[] handles = new long[delays.length];
+		for (int i = 0; i < delays.length; i++) {
+			final int id = i;
+			handles[i] = interrupt.schedule(delays[i], "selfTest",
+					new Runnable() {
+						public void run() {
+							fired[numFired[0]++] = id;
+						}
+					});
+
+			if (id == 4) {
+				Lib.assertTrue(interrupt.cancel(handles[4]));
+				Lib.assertTrue(!interrupt.cancel(handles[4]));
+			}
+		}
+
+		// the node of the cancelled interrupt went to the next one
+		Lib.assertTrue((int) handles[5] == (int) handles[4]
+				&& handles[5] != handles[4]);
+		Lib.assertTrue(!interrupt.cancel(handles[4]));
+
+		interrupt.restore(intStatus);
+		while (Machine.timer().getTime() < start + 50) {
+			interrupt.disable();
+			interrupt.enable();
+		}
+
+		int[] order = { 1, 2, 3, 0, 5 };
+		Lib.assertTrue(numFired[0] == order.length,
+				"cancelled interrupt fired, or one was lost");
+		for (int i = 0; i < order.length; i++)
+			Lib.assertTrue(fired[i] == order[i], "interrupts fired out of order");
+
+		intStatus = interrupt.disable();
+		Lib.assertTrue(!interrupt.cancel(handles[5]));
+		interrupt.restore(intStatus);
+	}
+
 	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+		PendingInterrupt(int slot) {
+			this.slot = slot;
 		}
 
 		public int compareTo(Object o) {
@@ -230,25 +462,66 @@ public final class Interrupt {
 		Runnable handler;
 
 		private long id;
+
+		/** This node's position in <tt>pending</tt>, or -1 if not pending. */
+		int index = -1;
+
+		/** This node's position in <tt>slots</tt>. */
+		final int slot;
+
+		/** Incremented each time this node is freed. */
+		int generation = 0;
+
+		PendingInterrupt nextFree = null;
 	}
 
 	private long numPendingInterruptsCreated = 0;
 
+	/**
+	 * The pending interrupts, as a binary heap ordered by time and then by
+	 * the order in which they were scheduled.
+	 */
+	private PendingInterrupt[] pending = new PendingInterrupt[16];
+
+	private int numPending = 0;
+
+	/**
+	 * Every node ever allocated, so a handle (a slot and a generation) can be
+	 * mapped back to its node.
+	 */
+	private PendingInterrupt[] slots = new PendingInterrupt[16];
+
+	private int numSlots = 0;
+
+	/** Nodes not currently pending, available for reuse. */
+	private PendingInterrupt freeList = null;
+
 	private Privilege privilege;
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
 
 	private static final char dbgInt = 'i';
 
 	private class InterruptPrivilege implements Privilege.InterruptPrivilege {
-		public void schedule(long when, String type, Runnable handler) {
-			Interrupt.this.schedule(when, type, handler);
+		public long schedule(long when, String type, Runnable handler) {
+			return Interrupt.this.schedule(when, type, handler);
+		}
+
+		public boolean cancel(long handle) {
+			return Interrupt.this.cancel(handle);
 		}
 
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long getTicksUntilDue() {
+			return Interrupt.this.getTicksUntilDue();
+		}
+
+		public void chargeUserTicks(long count) {
+			Interrupt.this.chargeUserTicks(count);
+		}
 	}
 }
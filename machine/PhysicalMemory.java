@@ -0,0 +1,266 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.machine.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The physical memory of the simulated machine. Values are stored in
+ * little-endian byte order, and are read and written a whole byte, halfword,
+ * or word at a time, instead of being assembled from individual bytes.
+ *
+ * <p>
+ * Halfword and word accesses must be aligned; the processor checks this
+ * before translating an address, and kernel code should do the same.
+ *
+ * <p>
+ * Physical memory is normally held in a Java array, but may instead be held
+ * in a direct or memory-mapped buffer outside the Java heap (see
+ * <tt>Processor.memoryBackend</tt>). The bulk transfer methods work with
+ * either.
+ */
+public final class PhysicalMemory {
+	/**
+	 * Allocate a new physical memory backed by the specified array.
+	 *
+	 * @param array the array holding the contents of physical memory.
+	 */
+	PhysicalMemory(byte[] array) {
+		this.array = array;
+
+		buffer = ByteBuffer.wrap(array).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Allocate a new physical memory backed by the specified buffer, which
+	 * need not be backed by an array.
+	 *
+	 * @param buffer the buffer holding the contents of physical memory.
+	 */
+	PhysicalMemory(ByteBuffer buffer) {
+		if (buffer.hasArray() && buffer.arrayOffset() == 0)
+			array = buffer.array();
+
+		this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Return the size of physical memory, in bytes.
+	 *
+	 * @return the size of physical memory.
+	 */
+	public int getSize() {
+		return buffer.capacity();
+	}
+
+	/**
+	 * Read a sign-extended byte.
+	 *
+	 * @param paddr the physical address to read.
+	 * @return the byte at <i>paddr</i>.
+	 */
+	public int readByte(int paddr) {
+		return buffer.get(paddr);
+	}
+
+	/**
+	 * Read a sign-extended halfword.
+	 *
+	 * @param paddr the physical address to read. Must be 2-byte aligned.
+	 * @return the halfword at <i>paddr</i>.
+	 */
+	public int readHalf(int paddr) {
+		return buffer.getShort(paddr);
+	}
+
+	/**
+	 * Read a word.
+	 *
+	 * @param paddr the physical address to read. Must be 4-byte aligned.
+	 * @return the word at <i>paddr</i>.
+	 */
+	public int readWord(int paddr) {
+		return buffer.getInt(paddr);
+	}
+
+	/**
+	 * Read <i>size</i> (1, 2, or 4) bytes, sign-extending bytes and
+	 * halfwords. Equivalent to <tt>Lib.bytesToInt(memory, paddr, size)</tt>.
+	 *
+	 * @param paddr the physical address to read.
+	 * @param size the number of bytes to read.
+	 * @return the value read.
+	 */
+	public int read(int paddr, int size) {
+		switch (size) {
+		case 1:
+			return buffer.get(paddr);
+		case 2:
+			return buffer.getShort(paddr);
+		case 4:
+			return buffer.getInt(paddr);
+		default:
+			Lib.assertNotReached();
+			return -1;
+		}
+	}
+
+	/**
+	 * Write a byte.
+	 *
+	 * @param paddr the physical address to write.
+	 * @param value the value to write; only the low 8 bits are used.
+	 */
+	public void writeByte(int paddr, int value) {
+		buffer.put(paddr, (byte) value);
+	}
+
+	/**
+	 * Write a halfword.
+	 *
+	 * @param paddr the physical address to write. Must be 2-byte aligned.
+	 * @param value the value to write; only the low 16 bits are used.
+	 */
+	public void writeHalf(int paddr, int value) {
+		buffer.putShort(paddr, (short) value);
+	}
+
+	/**
+	 * Write a word.
+	 *
+	 * @param paddr the physical address to write. Must be 4-byte aligned.
+	 * @param value the value to write.
+	 */
+	public void writeWord(int paddr, int value) {
+		buffer.putInt(paddr, value);
+	}
+
+	/**
+	 * Write the low <i>size</i> (1, 2, or 4) bytes of <i>value</i>.
+	 * Equivalent to <tt>Lib.bytesFromInt(memory, paddr, size, value)</tt>.
+	 *
+	 * @param paddr the physical address to write.
+	 * @param size the number of bytes to write.
+	 * @param value the value to write.
+	 */
+	public void write(int paddr, int size, int value) {
+		switch (size) {
+		case 1:
+			buffer.put(paddr, (byte) value);
+			break;
+		case 2:
+			buffer.putShort(paddr, (short) value);
+			break;
+		case 4:
+			buffer.putInt(paddr, value);
+			break;
+		default:
+			Lib.assertNotReached();
+		}
+	}
+
+	/**
+	 * Copy bytes from physical memory into an array.
+	 *
+	 * @param paddr the first physical address to read.
+	 * @param data the array to copy into.
+	 * @param offset the first byte to write in the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void read(int paddr, byte[] data, int offset, int length) {
+		if (array != null) {
+			System.arraycopy(array, paddr, data, offset, length);
+		}
+		else {
+			ByteBuffer view = buffer.duplicate();
+			view.position(paddr);
+			view.get(data, offset, length);
+		}
+	}
+
+	/**
+	 * Copy bytes from an array into physical memory.
+	 *
+	 * @param paddr the first physical address to write.
+	 * @param data the array to copy from.
+	 * @param offset the first byte to read in the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void write(int paddr, byte[] data, int offset, int length) {
+		if (array != null) {
+			System.arraycopy(data, offset, array, paddr, length);
+		}
+		else {
+			ByteBuffer view = buffer.duplicate();
+			view.position(paddr);
+			view.put(data, offset, length);
+		}
+	}
+
+	/**
+	 * Set a range of physical memory to a single value.
+	 *
+	 * @param paddr the first physical address to write.
+	 * @param length the number of bytes to write.
+	 * @param value the value to store in each byte.
+	 */
+	public void fill(int paddr, int length, byte value) {
+		if (array != null) {
+			Arrays.fill(array, paddr, paddr + length, value);
+		}
+		else {
+			for (int i = 0; i < length; i++)
+				buffer.put(paddr + i, value);
+		}
+	}
+
+	/**
+	 * Read bytes from a file directly into physical memory.
+	 *
+	 * @param file the file to read.
+	 * @param position the offset in the file to start reading from.
+	 * @param paddr the first physical address to write.
+	 * @param length the number of bytes to read.
+	 * @return the number of bytes actually read, or -1 on error.
+	 */
+	public int readFile(OpenFile file, int position, int paddr, int length) {
+		if (array != null)
+			return file.read(position, array, paddr, length);
+
+		byte[] data = new byte[length];
+		int amount = file.read(position, data, 0, length);
+		if (amount > 0)
+			write(paddr, data, 0, amount);
+
+		return amount;
+	}
+
+	/**
+	 * Write bytes from physical memory directly to a file.
+	 *
+	 * @param file the file to write.
+	 * @param position the offset in the file to start writing at.
+	 * @param paddr the first physical address to read.
+	 * @param length the number of bytes to write.
+	 * @return the number of bytes actually written, or -1 on error.
+	 */
+	public int writeFile(OpenFile file, int position, int paddr, int length) {
+		if (array != null)
+			return file.write(position, array, paddr, length);
+
+		byte[] data = new byte[length];
+		read(paddr, data, 0, length);
+
+		return file.write(position, data, 0, length);
+	}
+
+	/** The array holding physical memory, or <tt>null</tt> if none. */
+	private byte[] array = null;
+
+	/** A little-endian view of physical memory. */
+	private ByteBuffer buffer;
+}
@@ -4,6 +4,12 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -43,16 +49,101 @@ public final class Processor {
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
-		mainMemory = new byte[pageSize * numPhysPages];
+		Lib.assertTrue(numPhysPages <= Integer.MAX_VALUE / pageSize);
+		int memorySize = pageSize * numPhysPages;
+
+		String memoryBackend = Config.getString("Processor.memoryBackend",
+				"heap");
+		if (memoryBackend.equals("heap")) {
+			mainMemory = new byte[memorySize];
+			memory = new PhysicalMemory(mainMemory);
+		}
+		else if (memoryBackend.equals("direct")) {
+			memory = new PhysicalMemory(ByteBuffer.allocateDirect(memorySize));
+		}
+		else if (memoryBackend.equals("mapped")) {
+			mapMemory(memorySize,
+					Config.getString("Processor.memoryFile", null));
+		}
+		else {
+			Lib.assertNotReached("unknown Processor.memoryBackend: "
+					+ memoryBackend);
+		}
+
+		decodeCache = new Decoded[numPhysPages][];
+
+		threadedCode = Config.getBoolean("Processor.threadedCode", false);
+		if (threadedCode) {
+			blockCache = new Block[numPhysPages][];
+			hotBlockThreshold = Config.getInteger("Processor.hotBlockThreshold",
+					hotBlockThreshold);
+		}
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			tlbAssociativity = Config.getInteger("Processor.tlbAssociativity",
+					tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbAssociativity > 0
+					&& tlbSize % tlbAssociativity == 0);
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			int buckets = 1;
+			while (buckets < tlbSize)
+				buckets <<= 1;
+
+			tlbBuckets = new int[buckets];
+			tlbNext = new int[tlbSize];
+			for (int i = 0; i < buckets; i++)
+				tlbBuckets[i] = -1;
 		}
 		else {
 			translations = null;
 		}
+
+		for (int i = 0; i < lookasideVpn.length; i++)
+			lookasideVpn[i] = -1;
+	}
+
+	/**
+	 * Back physical memory with a file mapped into the host address space.
+	 * The file is extended to <i>size</i> bytes without being written, so on
+	 * most file systems only the pages actually touched take up space.
+	 * 
+	 * @param size the size of physical memory, in bytes.
+	 * @param fileName the file to map, or <tt>null</tt> to use a temporary
+	 * file that is deleted when Nachos exits.
+	 */
+	private void mapMemory(final int size, final String fileName) {
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				try {
+					File f;
+					if (fileName == null) {
+						f = File.createTempFile("nachos", ".mem");
+						f.deleteOnExit();
+					}
+					else {
+						f = new File(fileName);
+					}
+
+					RandomAccessFile file = new RandomAccessFile(f, "rw");
+					file.setLength(size);
+					ByteBuffer buffer = file.getChannel().map(
+							FileChannel.MapMode.READ_WRITE, 0, size);
+					file.close();
+
+					memory = new PhysicalMemory(buffer);
+				}
+				catch (IOException e) {
+					Lib.assertNotReached("could not map "
+							+ (fileName != null ? fileName : "a temporary file")
+							+ ": " + e);
+				}
+			}
+		});
 	}
 
 	/**
@@ -87,8 +178,16 @@ public final class Processor {
 
 		registers[regNextPC] = registers[regPC] + 4;
 
+		quietTicks = 0;
+
 		Machine.autoGrader().runProcessor(privilege);
 
+		if (threadedCode && !Lib.test(dbgProcessor)
+				&& !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble)) {
+			runThreadedCode();
+			return;
+		}
+
 		Instruction inst = new Instruction();
 
 		while (true) {
@@ -99,7 +198,42 @@ public final class Processor {
 				e.handle();
 			}
 
-			privilege.interrupt.tick(false);
+			tick();
+		}
+	}
+
+	/**
+	 * Advance the simulated time by one user instruction.
+	 * 
+	 * <p>
+	 * Interrupts are only checked when the next pending interrupt could be
+	 * due. Until then, the time taken by each instruction is accumulated in
+	 * <tt>unchargedTicks</tt> and charged to the statistics all at once, either
+	 * just before the next real tick or just before the kernel handles an
+	 * exception, so the kernel always sees exactly the same time as if every
+	 * instruction had ticked.
+	 */
+	private void tick() {
+		if (quietTicks > 0) {
+			quietTicks--;
+			unchargedTicks++;
+			return;
+		}
+
+		chargeTicks();
+		privilege.interrupt.tick(false);
+
+		quietTicks = (privilege.interrupt.getTicksUntilDue() - 1)
+				/ Stats.UserTick;
+	}
+
+	/**
+	 * Charge any accumulated user ticks to the statistics.
+	 */
+	private void chargeTicks() {
+		if (unchargedTicks > 0) {
+			privilege.interrupt.chargeUserTicks(unchargedTicks);
+			unchargedTicks = 0;
 		}
 	}
 
@@ -173,6 +307,7 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		epoch++;
 	}
 
 	/**
@@ -186,6 +321,76 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of entries in each set of this processor's TLB. If
+	 * this is equal to the TLB size, the TLB is fully associative.
+	 * 
+	 * @return the associativity of this processor's TLB.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbAssociativity;
+	}
+
+	/**
+	 * Return the set of TLB entries that can translate the specified virtual
+	 * page. The entries in set <i>s</i> are numbered from
+	 * <tt>s*getTLBAssociativity()</tt> to
+	 * <tt>(s+1)*getTLBAssociativity()-1</tt>.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the TLB set that <i>vpn</i> maps to.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		return vpn % (tlbSize / tlbAssociativity);
+	}
+
+	/**
+	 * Set the address space identifier of the running process. A TLB entry
+	 * only translates addresses if its <tt>asid</tt> matches, so entries
+	 * belonging to different processes can remain in the TLB across context
+	 * switches.
+	 * 
+	 * @param asid the new address space identifier.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+
+		this.asid = asid;
+		epoch++;
+	}
+
+	/**
+	 * Return the address space identifier of the running process.
+	 * 
+	 * @return the current address space identifier.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return asid;
+	}
+
+	/**
+	 * Invalidate every entry in the TLB.
+	 */
+	public void flushTLB() {
+		Lib.assertTrue(usingTLB);
+
+		for (int i = 0; i < tlbSize; i++) {
+			if (translations[i].valid) {
+				unlinkTLBEntry(i, translations[i].vpn);
+				translations[i].valid = false;
+			}
+		}
+
+		privilege.stats.numTLBFlushes++;
+		epoch++;
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -203,17 +408,252 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * If the TLB is fully associative (the default), the location of an entry
+	 * within the TLB does not affect anything. Otherwise, an entry is only
+	 * used if it is written into the set returned by <tt>getTLBSet()</tt>.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
 	 */
 	public void writeTLBEntry(int number, TranslationEntry entry) {
+		writeTLBEntry(number, entry.vpn, entry.ppn, entry.asid,
+				flagsFromEntry(entry));
+	}
+
+	/**
+	 * Return the virtual page number of the specified TLB entry.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the vpn of the entry.
+	 */
+	public int readTLBVPN(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return translations[number].vpn;
+	}
+
+	/**
+	 * Return the physical page number of the specified TLB entry.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the ppn of the entry.
+	 */
+	public int readTLBPPN(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return translations[number].ppn;
+	}
+
+	/**
+	 * Return the address space identifier of the specified TLB entry.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the asid of the entry.
+	 */
+	public int readTLBASID(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return translations[number].asid;
+	}
+
+	/**
+	 * Return the flags of the specified TLB entry, as a combination of
+	 * <tt>tlbValid</tt>, <tt>tlbReadOnly</tt>, <tt>tlbUsed</tt> and
+	 * <tt>tlbDirty</tt>.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the flags of the entry.
+	 */
+	public int readTLBFlags(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return flagsFromEntry(translations[number]);
+	}
+
+	/**
+	 * Copy the entire TLB into the specified arrays, which must each hold at
+	 * least <tt>getTLBSize()</tt> elements. Any array may be <tt>null</tt>, in
+	 * which case that field is not copied.
+	 * 
+	 * @param vpns receives the vpn of each entry.
+	 * @param ppns receives the ppn of each entry.
+	 * @param asids receives the asid of each entry.
+	 * @param flags receives the flags of each entry.
+	 */
+	public void readTLB(int[] vpns, int[] ppns, int[] asids, int[] flags) {
+		Lib.assertTrue(usingTLB);
+
+		for (int i = 0; i < tlbSize; i++) {
+			TranslationEntry entry = translations[i];
+
+			if (vpns != null)
+				vpns[i] = entry.vpn;
+			if (ppns != null)
+				ppns[i] = entry.ppn;
+			if (asids != null)
+				asids[i] = entry.asid;
+			if (flags != null)
+				flags[i] = flagsFromEntry(entry);
+		}
+	}
+
+	/**
+	 * Fill the specified TLB entry, without allocating a
+	 * <tt>TranslationEntry</tt>.
+	 * 
+	 * @param number the index into the TLB.
+	 * @param vpn the virtual page number.
+	 * @param ppn the physical page number.
+	 * @param asid the address space identifier.
+	 * @param flags the flags of the new entry (see <tt>readTLBFlags()</tt>).
+	 */
+	public void writeTLBEntry(int number, int vpn, int ppn, int asid,
+			int flags) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		TranslationEntry entry = translations[number];
+
+		if (entry.valid)
+			unlinkTLBEntry(number, entry.vpn);
+
+		entry.vpn = vpn;
+		entry.ppn = ppn;
+		entry.asid = asid;
+		setEntryFlags(entry, flags);
+		epoch++;
+
+		if (entry.valid)
+			linkTLBEntry(number, vpn);
+	}
+
+	/**
+	 * Fill the entire TLB from the specified arrays, which must each hold at
+	 * least <tt>getTLBSize()</tt> elements.
+	 * 
+	 * @param vpns the vpn of each entry.
+	 * @param ppns the ppn of each entry.
+	 * @param asids the asid of each entry.
+	 * @param flags the flags of each entry.
+	 */
+	public void writeTLB(int[] vpns, int[] ppns, int[] asids, int[] flags) {
+		Lib.assertTrue(usingTLB);
+
+		for (int i = 0; i < tlbSize; i++)
+			writeTLBEntry(i, vpns[i], ppns[i], asids[i], flags[i]);
+	}
+
+	/**
+	 * Set and clear flags of the specified TLB entry in place, and return the
+	 * flags it had before. For example, <tt>updateTLBFlags(i, 0,
+	 * tlbUsed|tlbDirty)</tt> collects and resets the used and dirty bits of
+	 * an entry in a single call.
+	 * 
+	 * @param number the index into the TLB.
+	 * @param set the flags to set.
+	 * @param clear the flags to clear.
+	 * @return the previous flags of the entry.
+	 */
+	public int updateTLBFlags(int number, int set, int clear) {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
-		translations[number] = new TranslationEntry(entry);
+		TranslationEntry entry = translations[number];
+		int flags = flagsFromEntry(entry);
+
+		if (entry.valid)
+			unlinkTLBEntry(number, entry.vpn);
+
+		setEntryFlags(entry, (flags | set) & ~clear);
+		epoch++;
+
+		if (entry.valid)
+			linkTLBEntry(number, entry.vpn);
+
+		return flags;
+	}
+
+	private static int flagsFromEntry(TranslationEntry entry) {
+		return (entry.valid ? tlbValid : 0)
+				| (entry.readOnly ? tlbReadOnly : 0)
+				| (entry.used ? tlbUsed : 0) | (entry.dirty ? tlbDirty : 0);
+	}
+
+	private static void setEntryFlags(TranslationEntry entry, int flags) {
+		entry.valid = (flags & tlbValid) != 0;
+		entry.readOnly = (flags & tlbReadOnly) != 0;
+		entry.used = (flags & tlbUsed) != 0;
+		entry.dirty = (flags & tlbDirty) != 0;
+	}
+
+	/** TLB entry flag: the entry is valid. */
+	public static final int tlbValid = 0x01;
+
+	/** TLB entry flag: the page is read-only. */
+	public static final int tlbReadOnly = 0x02;
+
+	/** TLB entry flag: the page has been read or written. */
+	public static final int tlbUsed = 0x04;
+
+	/** TLB entry flag: the page has been written. */
+	public static final int tlbDirty = 0x08;
+
+	/**
+	 * Add a valid TLB entry to the hash chain for its virtual page. Chains are
+	 * kept sorted by TLB index, so that when several valid entries map the same
+	 * page, <tt>translate()</tt> finds the lowest numbered one, just as a
+	 * linear scan of the TLB would.
+	 * 
+	 * @param number the index of the entry in the TLB.
+	 * @param vpn the virtual page number of the entry.
+	 */
+	private void linkTLBEntry(int number, int vpn) {
+		// entries outside the set for their vpn can never match
+		if (number / tlbAssociativity != getTLBSet(vpn))
+			return;
+
+		int bucket = vpn & (tlbBuckets.length - 1);
+
+		if (tlbBuckets[bucket] == -1 || tlbBuckets[bucket] > number) {
+			tlbNext[number] = tlbBuckets[bucket];
+			tlbBuckets[bucket] = number;
+			return;
+		}
+
+		int i = tlbBuckets[bucket];
+		while (tlbNext[i] != -1 && tlbNext[i] < number)
+			i = tlbNext[i];
+
+		tlbNext[number] = tlbNext[i];
+		tlbNext[i] = number;
+	}
+
+	/**
+	 * Remove a TLB entry from the hash chain for its virtual page.
+	 * 
+	 * @param number the index of the entry in the TLB.
+	 * @param vpn the virtual page number of the entry.
+	 */
+	private void unlinkTLBEntry(int number, int vpn) {
+		if (number / tlbAssociativity != getTLBSet(vpn))
+			return;
+
+		int bucket = vpn & (tlbBuckets.length - 1);
+
+		if (tlbBuckets[bucket] == number) {
+			tlbBuckets[bucket] = tlbNext[number];
+			return;
+		}
+
+		int i = tlbBuckets[bucket];
+		while (tlbNext[i] != number)
+			i = tlbNext[i];
+
+		tlbNext[i] = tlbNext[number];
 	}
 
 	/**
@@ -230,12 +670,29 @@ public final class Processor {
 	 * Return a reference to the physical memory array. The size of this array
 	 * is <tt>pageSize * getNumPhysPages()</tt>.
 	 * 
-	 * @return the main memory array.
+	 * <p>
+	 * Physical memory is only held in an array when
+	 * <tt>Processor.memoryBackend</tt> is <tt>heap</tt> (the default).
+	 * Otherwise this returns <tt>null</tt>, and physical memory must be
+	 * accessed through <tt>getPhysicalMemory()</tt>.
+	 * 
+	 * @return the main memory array, or <tt>null</tt>.
 	 */
 	public byte[] getMemory() {
 		return mainMemory;
 	}
 
+	/**
+	 * Return this processor's physical memory, which provides byte, halfword
+	 * and word accessors for the contents of the array returned by
+	 * <tt>getMemory()</tt>.
+	 * 
+	 * @return the physical memory.
+	 */
+	public PhysicalMemory getPhysicalMemory() {
+		return memory;
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -301,8 +758,21 @@ public final class Processor {
 		}
 
 		// calculate virtual page number and offset from the virtual address
-		int vpn = pageFromAddress(vaddr);
-		int offset = offsetFromAddress(vaddr);
+		int vpn = vaddr >>> pageShift;
+		int offset = vaddr & (pageSize - 1);
+
+		// translations already made since the kernel last ran need no checks
+		int slot = ((vpn & (lookasideSize - 1)) << 1) | (writing ? 1 : 0);
+		if (lookasideVpn[slot] == vpn && lookasideEpoch[slot] == epoch) {
+			if (usingTLB)
+				privilege.stats.numTLBHits++;
+
+			int paddr = lookasidePage[slot] + offset;
+
+			if (Lib.test(dbgProcessor))
+				System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+			return paddr;
+		}
 
 		TranslationEntry entry = null;
 
@@ -317,10 +787,12 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the TLB entries hashed with this vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
+			int bucket = vpn & (tlbBuckets.length - 1);
+			for (int i = tlbBuckets[bucket]; i != -1; i = tlbNext[i]) {
+				if (translations[i].vpn == vpn
+						&& translations[i].asid == asid) {
 					entry = translations[i];
 					break;
 				}
@@ -330,6 +802,7 @@ public final class Processor {
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
 				throw new MipsException(exceptionTLBMiss, vaddr);
 			}
+			privilege.stats.numTLBHits++;
 		}
 
 		// check if trying to write a read-only page
@@ -350,6 +823,10 @@ public final class Processor {
 		if (writing)
 			entry.dirty = true;
 
+		lookasideVpn[slot] = vpn;
+		lookasideEpoch[slot] = epoch;
+		lookasidePage[slot] = ppn * pageSize;
+
 		int paddr = (ppn * pageSize) + offset;
 
 		if (Lib.test(dbgProcessor))
@@ -373,8 +850,7 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		int value = memory.read(translate(vaddr, size, false), size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -400,74 +876,407 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		int paddr = translate(vaddr, size, true);
+		invalidateDecoded(paddr);
+
+		memory.write(paddr, size, value);
 	}
 
 	/**
-	 * Complete the in progress delayed load and scheduled a new one.
+	 * Return the decoded form of the instruction word <i>value</i>, which was
+	 * fetched from physical address <i>paddr</i>. Decoded instructions are
+	 * cached per physical word, and each cache entry is tagged with the raw
+	 * instruction word it was built from. An entry is therefore only reused if
+	 * the word in memory is unchanged, even if the kernel rewrote or remapped
+	 * the page behind the processor's back.
 	 * 
-	 * @param nextLoadTarget the target register of the new load.
-	 * @param nextLoadValue the value to be loaded into the new target.
-	 * @param nextLoadMask the mask specifying which bits in the new target are
-	 * to be overwritten. If a bit in <tt>nextLoadMask</tt> is 0, then the
-	 * corresponding bit of register <tt>nextLoadTarget</tt> will not be
-	 * written.
+	 * @param paddr the physical address the instruction was fetched from.
+	 * @param value the instruction word.
+	 * @return the decoded instruction.
 	 */
-	private void delayedLoad(int nextLoadTarget, int nextLoadValue,
-			int nextLoadMask) {
-		// complete previous delayed load, if not modifying r0
-		if (loadTarget != 0) {
-			int savedBits = registers[loadTarget] & ~loadMask;
-			int newBits = loadValue & loadMask;
-			registers[loadTarget] = savedBits | newBits;
+	private Decoded lookupDecoded(int paddr, int value) {
+		int ppn = paddr / pageSize;
+		int index = (paddr % pageSize) / 4;
+
+		Decoded[] page = decodeCache[ppn];
+		if (page == null) {
+			page = new Decoded[pageSize / 4];
+			decodeCache[ppn] = page;
 		}
 
-		// schedule next load
-		loadTarget = nextLoadTarget;
-		loadValue = nextLoadValue;
-		loadMask = nextLoadMask;
+		Decoded decoded = page[index];
+		if (decoded == null || decoded.value != value) {
+			decoded = new Decoded(value);
+			page[index] = decoded;
+		}
+
+		return decoded;
 	}
 
 	/**
-	 * Advance the PC to the next instruction.
+	 * Drop all decoded instructions cached for the physical page containing
+	 * <i>paddr</i>. Called whenever a user store writes to a page that
+	 * instructions have been fetched from.
 	 * 
-	 * <p>
-	 * Transfer the contents of the nextPC register into the PC register, and
-	 * then add 4 to the value in the nextPC register. Same as
-	 * <tt>advancePC(readRegister(regNextPC)+4)</tt>.
-	 * 
-	 * <p>
-	 * Use after handling a syscall exception so that the processor will move on
-	 * to the next instruction.
+	 * @param paddr a physical address within the page that was written.
 	 */
-	public void advancePC() {
-		advancePC(registers[regNextPC] + 4);
+	private void invalidateDecoded(int paddr) {
+		int ppn = paddr / pageSize;
+
+		if (decodeCache[ppn] != null) {
+			Lib.debug(dbgProcessor, "\t\tinvalidating decoded page " + ppn);
+			decodeCache[ppn] = null;
+
+			if (blockCache != null && blockCache[ppn] != null) {
+				Block[] page = blockCache[ppn];
+				for (int i = 0; i < page.length; i++) {
+					if (page[i] != null)
+						page[i].valid = false;
+				}
+				blockCache[ppn] = null;
+			}
+		}
 	}
 
 	/**
-	 * Transfer the contents of the nextPC register into the PC register, and
-	 * then write the nextPC register.
+	 * Execute user instructions one basic block at a time. Used instead of
+	 * the interpreter loop in <tt>run()</tt> when <tt>Processor.threadedCode</tt>
+	 * is set. Never returns.
 	 * 
-	 * @param nextPC the new value of the nextPC register.
+	 * <p>
+	 * When a block raises an exception, the exception is handled exactly as
+	 * the interpreter would handle it, and the instruction the kernel returns
+	 * to is then run by the interpreter before block execution resumes.
 	 */
-	private void advancePC(int nextPC) {
-		registers[regPC] = registers[regNextPC];
-		registers[regNextPC] = nextPC;
-	}
-
-	/** Caused by a syscall instruction. */
-	public static final int exceptionSyscall = 0;
+	private void runThreadedCode() {
+		Lib.debug(dbgProcessor, "using threaded code");
 
-	/** Caused by an access to an invalid virtual page. */
-	public static final int exceptionPageFault = 1;
+		Instruction inst = new Instruction();
 
-	/** Caused by an access to a virtual page not mapped by any TLB entry. */
-	public static final int exceptionTLBMiss = 2;
+		boolean interpreting = false;
 
-	/** Caused by a write access to a read-only virtual page. */
-	public static final int exceptionReadOnly = 3;
+		while (true) {
+			try {
+				if (interpreting) {
+					interpreting = false;
+					inst.run();
+					tick();
+				}
+				else {
+					executeBlock();
+				}
+			}
+			catch (MipsException e) {
+				e.handle();
+				tick();
 
-	/** Caused by an access to an invalid physical page. */
+				interpreting = true;
+			}
+		}
+	}
+
+	/**
+	 * Execute the basic block starting at the current PC, stopping early if
+	 * an interrupt handler ran, if the block was invalidated by a store, or if
+	 * control left the block.
+	 * 
+	 * <p>
+	 * Only the first instruction of the block is fetched through
+	 * <tt>translate()</tt>. As long as <tt>epoch</tt> does not change, the
+	 * kernel has not run, so the remaining instructions (which lie on the same
+	 * page) would translate to the same physical addresses, and their used
+	 * bits are already set.
+	 * 
+	 * <p>
+	 * For the same reason, once a block is hot (it has executed
+	 * <tt>hotBlockThreshold</tt> times), execution is chained directly into
+	 * the next block when that block starts on the same virtual page, without
+	 * returning to <tt>runThreadedCode()</tt> or translating the PC again.
+	 * 
+	 * @exception MipsException if an instruction in the block caused an
+	 * exception.
+	 */
+	private void executeBlock() throws MipsException {
+		int pc = registers[regPC];
+		int vpn = pageFromAddress(pc);
+
+		Block block = lookupBlock(translate(pc, 4, false));
+
+		int startEpoch = epoch;
+
+		// instructions before this index were fetched through translate()
+		int translated = 1;
+
+		while (true) {
+			Op[] ops = block.ops;
+
+			for (int i = 0; i < ops.length; i++) {
+				if (usingTLB && i >= translated)
+					privilege.stats.numTLBHits++;
+
+				ops[i].execute();
+				tick();
+
+				if (epoch != startEpoch || !block.valid)
+					return;
+
+				pc += 4;
+				if (registers[regPC] != pc)
+					break;
+			}
+
+			if (block.executions < hotBlockThreshold) {
+				block.executions++;
+				return;
+			}
+
+			// a misaligned PC must go through translate() to fault
+			pc = registers[regPC];
+			if ((pc & 0x3) != 0 || pageFromAddress(pc) != vpn)
+				return;
+
+			block = block.successor(block.paddr - offsetFromAddress(block.paddr)
+					+ offsetFromAddress(pc));
+
+			translated = 0;
+		}
+	}
+
+	/**
+	 * Return the basic block starting at physical address <i>paddr</i>,
+	 * building it if necessary. A cached block is checked against the words
+	 * in memory once per <tt>epoch</tt>, since the kernel may have modified
+	 * memory while it ran.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the basic block.
+	 */
+	private Block lookupBlock(int paddr) {
+		int ppn = paddr / pageSize;
+		int index = (paddr % pageSize) / 4;
+
+		Block[] page = blockCache[ppn];
+		if (page == null) {
+			page = new Block[pageSize / 4];
+			blockCache[ppn] = page;
+		}
+
+		Block block = page[index];
+		if (block != null && block.checkedEpoch != epoch) {
+			for (int i = 0; i < block.words.length; i++) {
+				if (memory.readWord(paddr + i * 4) != block.words[i]) {
+					block.valid = false;
+					break;
+				}
+			}
+
+			block.checkedEpoch = epoch;
+		}
+
+		if (block == null || !block.valid) {
+			block = new Block(paddr);
+			page[index] = block;
+		}
+
+		return block;
+	}
+
+	/**
+	 * Build the handler for a single decoded instruction.
+	 * 
+	 * @param decoded the decoded instruction.
+	 * @return a handler that executes the instruction.
+	 */
+	private Op makeOp(Decoded decoded) {
+		boolean unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+		boolean link = Lib.test(Mips.LINK, decoded.flags);
+
+		// instructions whose only effect is writing $0
+		if (Lib.test(Mips.DST, decoded.flags) && decoded.dstReg == 0
+				&& !link && !Lib.test(Mips.OVERFLOW, decoded.flags)
+				&& !Lib.test(Mips.BRANCH, decoded.flags))
+			return new Nop();
+
+		switch (decoded.operation) {
+		case Mips.ADD:
+			if (Lib.test(Mips.OVERFLOW, decoded.flags))
+				return new OverflowAlu(decoded, false);
+			else if (Lib.test(Mips.SRC2IMM, decoded.flags))
+				return new Addiu(decoded);
+			else
+				return new Addu(decoded);
+		case Mips.SUB:
+			if (Lib.test(Mips.OVERFLOW, decoded.flags))
+				return new OverflowAlu(decoded, true);
+			else
+				return new Subu(decoded);
+		case Mips.MULT:
+			return new Mult(decoded, unsigned);
+		case Mips.DIV:
+			return new Div(decoded, unsigned);
+
+		case Mips.SLL:
+			if (Lib.test(Mips.SRC1SH, decoded.flags))
+				return new Sll(decoded);
+			else
+				return new Sllv(decoded);
+		case Mips.SRA:
+			if (Lib.test(Mips.SRC1SH, decoded.flags))
+				return new Sra(decoded);
+			else
+				return new Srav(decoded);
+		case Mips.SRL:
+			if (Lib.test(Mips.SRC1SH, decoded.flags))
+				return new Srl(decoded);
+			else
+				return new Srlv(decoded);
+
+		case Mips.SLT:
+			if (Lib.test(Mips.SRC2IMM, decoded.flags))
+				return new Slti(decoded, unsigned);
+			else
+				return new Slt(decoded, unsigned);
+
+		case Mips.AND:
+			if (Lib.test(Mips.SRC2IMM, decoded.flags))
+				return new Andi(decoded);
+			else
+				return new And(decoded);
+		case Mips.OR:
+			if (Lib.test(Mips.SRC2IMM, decoded.flags))
+				return new Ori(decoded);
+			else
+				return new Or(decoded);
+		case Mips.XOR:
+			if (Lib.test(Mips.SRC2IMM, decoded.flags))
+				return new Xori(decoded);
+			else
+				return new Xor(decoded);
+		case Mips.NOR:
+			return new Nor(decoded);
+		case Mips.LUI:
+			return new Lui(decoded);
+
+		case Mips.BEQ:
+			return new Beq(decoded);
+		case Mips.BNE:
+			return new Bne(decoded);
+		case Mips.BGEZ:
+			return new Bgez(decoded, link);
+		case Mips.BGTZ:
+			return new Bgtz(decoded);
+		case Mips.BLEZ:
+			return new Blez(decoded);
+		case Mips.BLTZ:
+			return new Bltz(decoded, link);
+
+		case Mips.JUMP:
+			if (decoded.format == Mips.JFMT)
+				return new Jump(decoded, link);
+			else
+				return new JumpRegister(decoded, link);
+
+		case Mips.MFLO:
+			return new MoveFrom(decoded, regLo);
+		case Mips.MFHI:
+			return new MoveFrom(decoded, regHi);
+		case Mips.MTLO:
+			return new MoveTo(decoded, regLo);
+		case Mips.MTHI:
+			return new MoveTo(decoded, regHi);
+
+		case Mips.SYSCALL:
+			return new Syscall();
+
+		case Mips.LOAD:
+			return new Load(decoded, unsigned);
+		case Mips.LWL:
+			return new Lwl(decoded);
+		case Mips.LWR:
+			return new Lwr(decoded);
+		case Mips.STORE:
+			return new Store(decoded);
+		case Mips.SWL:
+			return new Swl(decoded);
+		case Mips.SWR:
+			return new Swr(decoded);
+
+		case Mips.UNIMPL:
+			return new Illegal(true);
+		case Mips.INVALID:
+			return new Illegal(false);
+
+		default:
+			Lib.assertNotReached();
+			return null;
+		}
+	}
+
+	/**
+	 * Complete the in progress delayed load and scheduled a new one.
+	 * 
+	 * @param nextLoadTarget the target register of the new load.
+	 * @param nextLoadValue the value to be loaded into the new target.
+	 * @param nextLoadMask the mask specifying which bits in the new target are
+	 * to be overwritten. If a bit in <tt>nextLoadMask</tt> is 0, then the
+	 * corresponding bit of register <tt>nextLoadTarget</tt> will not be
+	 * written.
+	 */
+	private void delayedLoad(int nextLoadTarget, int nextLoadValue,
+			int nextLoadMask) {
+		// complete previous delayed load, if not modifying r0
+		if (loadTarget != 0) {
+			int savedBits = registers[loadTarget] & ~loadMask;
+			int newBits = loadValue & loadMask;
+			registers[loadTarget] = savedBits | newBits;
+		}
+
+		// schedule next load
+		loadTarget = nextLoadTarget;
+		loadValue = nextLoadValue;
+		loadMask = nextLoadMask;
+	}
+
+	/**
+	 * Advance the PC to the next instruction.
+	 * 
+	 * <p>
+	 * Transfer the contents of the nextPC register into the PC register, and
+	 * then add 4 to the value in the nextPC register. Same as
+	 * <tt>advancePC(readRegister(regNextPC)+4)</tt>.
+	 * 
+	 * <p>
+	 * Use after handling a syscall exception so that the processor will move on
+	 * to the next instruction.
+	 */
+	public void advancePC() {
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	/**
+	 * Transfer the contents of the nextPC register into the PC register, and
+	 * then write the nextPC register.
+	 * 
+	 * @param nextPC the new value of the nextPC register.
+	 */
+	private void advancePC(int nextPC) {
+		registers[regPC] = registers[regNextPC];
+		registers[regNextPC] = nextPC;
+	}
+
+	/** Caused by a syscall instruction. */
+	public static final int exceptionSyscall = 0;
+
+	/** Caused by an access to an invalid virtual page. */
+	public static final int exceptionPageFault = 1;
+
+	/** Caused by an access to a virtual page not mapped by any TLB entry. */
+	public static final int exceptionTLBMiss = 2;
+
+	/** Caused by a write access to a read-only virtual page. */
+	public static final int exceptionReadOnly = 3;
+
+	/** Caused by an access to an invalid physical page. */
 	public static final int exceptionBusError = 4;
 
 	/** Caused by an access to a misaligned virtual address. */
@@ -550,15 +1359,50 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbAssociativity;
+
+	/** The address space identifier of the running process. */
+	private int asid = 0;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
 
+	/**
+	 * Hash chains of valid TLB entries, indexed by the low bits of their vpn.
+	 * Each element is the TLB index of the first entry in the chain, or -1.
+	 */
+	private int[] tlbBuckets;
+
+	/** The next TLB index in the same hash chain as each entry, or -1. */
+	private int[] tlbNext;
+
+	/** Number of direct-mapped lookaside slots for each access type. */
+	private static final int lookasideSize = 64;
+
+	/**
+	 * A direct-mapped cache of recent successful translations, indexed by vpn
+	 * and by whether the access was a write. A slot is only used if it was
+	 * filled during the current <tt>epoch</tt>, so the used and dirty bits it
+	 * would set are already set, and the entry it came from is unchanged.
+	 */
+	private int[] lookasideVpn = new int[lookasideSize * 2];
+
+	/** The <tt>epoch</tt> in which each lookaside slot was filled. */
+	private int[] lookasideEpoch = new int[lookasideSize * 2];
+
+	/** The physical address of the page in each lookaside slot. */
+	private int[] lookasidePage = new int[lookasideSize * 2];
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
+	/** Log base 2 of the page size. */
+	private static final int pageShift = Integer.numberOfTrailingZeros(pageSize);
+
 	/** Number of pages in a 32-bit address space. */
 	public static final int maxPages = (int) (0x100000000L / pageSize);
 
@@ -566,7 +1410,52 @@ public final class Processor {
 	private int numPhysPages;
 
 	/** Main memory for user programs. */
-	private byte[] mainMemory;
+	private byte[] mainMemory = null;
+
+	/** Word-granular access to physical memory, however it is stored. */
+	private PhysicalMemory memory = null;
+
+	/**
+	 * Decoded instructions, indexed by physical page number and then by word
+	 * offset within the page. Pages that have never been executed from have no
+	 * array allocated.
+	 */
+	private Decoded[][] decodeCache;
+
+	/**
+	 * <tt>true</tt> if user code should be run as threaded code, one basic
+	 * block at a time, instead of through the interpreter.
+	 */
+	private boolean threadedCode;
+
+	/**
+	 * Basic blocks, indexed like <tt>decodeCache</tt> by the physical address
+	 * of their first instruction. <tt>null</tt> unless using threaded code.
+	 */
+	private Block[][] blockCache = null;
+
+	/**
+	 * The number of times a block must run before it is chained directly to
+	 * its successors.
+	 */
+	private int hotBlockThreshold = 16;
+
+	/**
+	 * Incremented whenever control leaves user code for the kernel: on every
+	 * exception, on every interrupt handler invoked, and whenever address
+	 * translation state is changed. While it stays the same, neither memory
+	 * nor address translations can have changed except through user stores.
+	 */
+	private int epoch = 0;
+
+	/**
+	 * The number of user instructions that can still complete before the next
+	 * pending interrupt could be due.
+	 */
+	private long quietTicks = 0;
+
+	/** User ticks that have passed but not yet been charged to the stats. */
+	private long unchargedTicks = 0;
 
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
@@ -580,6 +1469,7 @@ public final class Processor {
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+			epoch++;
 		}
 	}
 
@@ -598,6 +1488,9 @@ public final class Processor {
 		}
 
 		public void handle() {
+			epoch++;
+			chargeTicks();
+
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
@@ -611,10 +1504,11 @@ public final class Processor {
 			Lib.assertTrue(exceptionHandler != null);
 
 			// autograder might not want kernel to know about this exception
-			if (!Machine.autoGrader().exceptionHandler(privilege))
-				return;
+			if (Machine.autoGrader().exceptionHandler(privilege))
+				exceptionHandler.run();
 
-			exceptionHandler.run();
+			// the kernel may have scheduled interrupts, so tick next time
+			quietTicks = 0;
 		}
 
 		private boolean hasBadVAddr = false;
@@ -641,78 +1535,50 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			if (Lib.test(dbgProcessor))
+				System.out.println("\tfetch vaddr=0x"
+						+ Lib.toHexString(registers[regPC]));
+
+			paddr = translate(registers[regPC], 4, false);
+			value = memory.readWord(paddr);
 		}
 
 		private void decode() {
-			op = Lib.extract(value, 26, 6);
-			rs = Lib.extract(value, 21, 5);
-			rt = Lib.extract(value, 16, 5);
-			rd = Lib.extract(value, 11, 5);
-			sh = Lib.extract(value, 6, 5);
-			func = Lib.extract(value, 0, 6);
-			target = Lib.extract(value, 0, 26);
-			imm = Lib.extend(value, 0, 16);
+			Decoded decoded = lookupDecoded(paddr, value);
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
 
-			operation = info.operation;
-			name = info.name;
-			format = info.format;
-			flags = info.flags;
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+
+			size = decoded.size;
+			dstReg = decoded.dstReg;
 
 			mask = 0xFFFFFFFF;
 			branch = true;
 
-			// get memory access size
-			if (test(Mips.SIZEB))
-				size = 1;
-			else if (test(Mips.SIZEH))
-				size = 2;
-			else if (test(Mips.SIZEW))
-				size = 4;
-			else
-				size = 0;
-
 			// get nextPC
 			nextPC = registers[regNextPC] + 4;
 
-			// get dstReg
-			if (test(Mips.DSTRA))
-				dstReg = regRA;
-			else if (format == Mips.IFMT)
-				dstReg = rt;
-			else if (format == Mips.RFMT)
-				dstReg = rd;
-			else
-				dstReg = -1;
-
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + decoded.branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -1068,7 +1934,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -1085,6 +1951,890 @@ public final class Processor {
 		boolean branch;
 	}
 
+	/**
+	 * A straight-line run of user instructions, ending with the delay slot of
+	 * the first control transfer, with an instruction that always raises an
+	 * exception, or at the end of a page. Built by <tt>lookupBlock()</tt>.
+	 */
+	private final class Block {
+		Block(int paddr) {
+			this.paddr = paddr;
+
+			int end = (paddr / pageSize + 1) * pageSize;
+
+			int[] words = new int[(end - paddr) / 4];
+			Op[] ops = new Op[words.length];
+
+			int length = 0;
+			boolean delaySlot = false;
+
+			for (int addr = paddr; addr < end; addr += 4) {
+				int value = memory.readWord(addr);
+				Decoded decoded = lookupDecoded(addr, value);
+
+				words[length] = value;
+				ops[length] = makeOp(decoded);
+				length++;
+
+				if (delaySlot || decoded.operation == Mips.SYSCALL
+						|| decoded.operation == Mips.UNIMPL
+						|| decoded.operation == Mips.INVALID)
+					break;
+
+				delaySlot = Lib.test(Mips.BRANCH, decoded.flags);
+			}
+
+			this.words = new int[length];
+			this.ops = new Op[length];
+			System.arraycopy(words, 0, this.words, 0, length);
+			System.arraycopy(ops, 0, this.ops, 0, length);
+
+			checkedEpoch = epoch;
+
+			Lib.debug(dbgProcessor, "\t\tbuilt block at paddr=0x"
+					+ Lib.toHexString(paddr) + ", " + length + " instructions");
+		}
+
+		/**
+		 * Return the block starting at <i>paddr</i>, which control passed to
+		 * directly from this block. The last two successors are remembered, so
+		 * both exits of a conditional branch chain without a lookup.
+		 * 
+		 * @param paddr the physical address of the next instruction.
+		 * @return the next block.
+		 */
+		Block successor(int paddr) {
+			Block next = successors[0];
+			if (next == null || next.paddr != paddr) {
+				next = successors[1];
+				successors[1] = successors[0];
+			}
+
+			if (next == null || next.paddr != paddr || !next.valid
+					|| next.checkedEpoch != epoch)
+				next = lookupBlock(paddr);
+
+			successors[0] = next;
+			return next;
+		}
+
+		/** The physical address of the first instruction. */
+		final int paddr;
+
+		/** The instruction words this block was built from. */
+		final int[] words;
+
+		/** The handlers for each instruction, in order. */
+		final Op[] ops;
+
+		/** Cleared when a store modifies the page holding this block. */
+		boolean valid = true;
+
+		/** The <tt>epoch</tt> in which <tt>words</tt> was last verified. */
+		int checkedEpoch;
+
+		/** The number of times this block has run, up to the hot threshold. */
+		int executions = 0;
+
+		/** The most recently chained successors, most recent first. */
+		private Block[] successors = new Block[2];
+	}
+
+	/**
+	 * The handler for one instruction of a basic block, with its operands
+	 * already extracted. Executing a handler has exactly the same effect on
+	 * the processor as running the instruction through the interpreter.
+	 */
+	private abstract class Op {
+		abstract void execute() throws MipsException;
+	}
+
+	/** An instruction whose only effect is writing register 0. */
+	private final class Nop extends Op {
+		void execute() {
+			finishLoad();
+			advancePC();
+		}
+	}
+
+	/** A register-register instruction writing <i>rd</i>. */
+	private abstract class RegOp extends Op {
+		RegOp(Decoded decoded) {
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.dstReg;
+		}
+
+		final int rs, rt, rd;
+	}
+
+	/** A register-immediate instruction writing <i>rt</i>. */
+	private abstract class ImmOp extends Op {
+		ImmOp(Decoded decoded) {
+			rs = decoded.rs;
+			imm = decoded.imm;
+			rt = decoded.dstReg;
+		}
+
+		final int rs, imm, rt;
+	}
+
+	private final class Addu extends RegOp {
+		Addu(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() {
+			int dst = registers[rs] + registers[rt];
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+	}
+
+	private final class Subu extends RegOp {
+		Subu(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() {
+			int dst = registers[rs] - registers[rt];
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+	}
+
+	private final class And extends RegOp {
+		And(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() {
+			int dst = registers[rs] & registers[rt];
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+	}
+
+	private final class Or extends RegOp {
+		Or(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() {
+			int dst = registers[rs] | registers[rt];
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+	}
+
+	private final class Xor extends RegOp {
+		Xor(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() {
+			int dst = registers[rs] ^ registers[rt];
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+	}
+
+	private final class Nor extends RegOp {
+		Nor(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() {
+			int dst = ~(registers[rs] | registers[rt]);
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+	}
+
+	private final class Slt extends RegOp {
+		Slt(Decoded decoded, boolean unsigned) {
+			super(decoded);
+			this.unsigned = unsigned;
+		}
+
+		void execute() {
+			long src1 = registers[rs], src2 = registers[rt];
+			if (unsigned) {
+				src1 &= 0xFFFFFFFFL;
+				src2 &= 0xFFFFFFFFL;
+			}
+
+			int dst = (src1 < src2) ? 1 : 0;
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+
+		private final boolean unsigned;
+	}
+
+	private final class Sllv extends RegOp {
+		Sllv(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() {
+			int dst = registers[rt] << (registers[rs] & 0x1F);
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+	}
+
+	private final class Srav extends RegOp {
+		Srav(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() {
+			int dst = registers[rt] >> (registers[rs] & 0x1F);
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+	}
+
+	private final class Srlv extends RegOp {
+		Srlv(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() {
+			// the interpreter shifts the sign-extended source
+			int dst = (int) (((long) registers[rt]) >>> (registers[rs] & 0x1F));
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+	}
+
+	private final class Sll extends RegOp {
+		Sll(Decoded decoded) {
+			super(decoded);
+			sh = decoded.sh;
+		}
+
+		void execute() {
+			int dst = registers[rt] << sh;
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+
+		private final int sh;
+	}
+
+	private final class Sra extends RegOp {
+		Sra(Decoded decoded) {
+			super(decoded);
+			sh = decoded.sh;
+		}
+
+		void execute() {
+			int dst = registers[rt] >> sh;
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+
+		private final int sh;
+	}
+
+	private final class Srl extends RegOp {
+		Srl(Decoded decoded) {
+			super(decoded);
+			sh = decoded.sh;
+		}
+
+		void execute() {
+			// the interpreter shifts the sign-extended source
+			int dst = (int) (((long) registers[rt]) >>> sh);
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+
+		private final int sh;
+	}
+
+	private final class Addiu extends ImmOp {
+		Addiu(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() {
+			int dst = registers[rs] + imm;
+			finishLoad();
+			registers[rt] = dst;
+			advancePC();
+		}
+	}
+
+	private final class Andi extends ImmOp {
+		Andi(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() {
+			int dst = registers[rs] & imm;
+			finishLoad();
+			registers[rt] = dst;
+			advancePC();
+		}
+	}
+
+	private final class Ori extends ImmOp {
+		Ori(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() {
+			int dst = registers[rs] | imm;
+			finishLoad();
+			registers[rt] = dst;
+			advancePC();
+		}
+	}
+
+	private final class Xori extends ImmOp {
+		Xori(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() {
+			int dst = registers[rs] ^ imm;
+			finishLoad();
+			registers[rt] = dst;
+			advancePC();
+		}
+	}
+
+	private final class Slti extends ImmOp {
+		Slti(Decoded decoded, boolean unsigned) {
+			super(decoded);
+			this.unsigned = unsigned;
+			src2 = unsigned ? (imm & 0xFFFFFFFFL) : imm;
+		}
+
+		void execute() {
+			long src1 = registers[rs];
+			if (unsigned)
+				src1 &= 0xFFFFFFFFL;
+
+			int dst = (src1 < src2) ? 1 : 0;
+			finishLoad();
+			registers[rt] = dst;
+			advancePC();
+		}
+
+		private final boolean unsigned;
+
+		private final long src2;
+	}
+
+	private final class Lui extends ImmOp {
+		Lui(Decoded decoded) {
+			super(decoded);
+			dst = imm << 16;
+		}
+
+		void execute() {
+			finishLoad();
+			registers[rt] = dst;
+			advancePC();
+		}
+
+		private final int dst;
+	}
+
+	/** ADD, ADDI, or SUB, which raise an exception on overflow. */
+	private final class OverflowAlu extends Op {
+		OverflowAlu(Decoded decoded, boolean subtract) {
+			rs = decoded.rs;
+			rt = decoded.rt;
+			imm = decoded.imm;
+			dstReg = decoded.dstReg;
+			useImm = Lib.test(Mips.SRC2IMM, decoded.flags);
+			this.subtract = subtract;
+		}
+
+		void execute() throws MipsException {
+			long src1 = registers[rs];
+			long src2 = useImm ? imm : registers[rt];
+			long dst = subtract ? src1 - src2 : src1 + src2;
+
+			// same test as Instruction.writeBack()
+			if (Lib.test(dst, 31) != Lib.test(dst, 32))
+				throw new MipsException(exceptionOverflow);
+
+			finishLoad();
+			if (dstReg != 0)
+				registers[dstReg] = (int) dst;
+			advancePC();
+		}
+
+		private final int rs, rt, imm, dstReg;
+
+		private final boolean useImm, subtract;
+	}
+
+	private final class Mult extends Op {
+		Mult(Decoded decoded, boolean unsigned) {
+			rs = decoded.rs;
+			rt = decoded.rt;
+			this.unsigned = unsigned;
+		}
+
+		void execute() {
+			long src1 = registers[rs], src2 = registers[rt];
+			if (unsigned) {
+				src1 &= 0xFFFFFFFFL;
+				src2 &= 0xFFFFFFFFL;
+			}
+
+			long dst = src1 * src2;
+			registers[regLo] = (int) Lib.extract(dst, 0, 32);
+			registers[regHi] = (int) Lib.extract(dst, 32, 32);
+			finishLoad();
+			advancePC();
+		}
+
+		private final int rs, rt;
+
+		private final boolean unsigned;
+	}
+
+	private final class Div extends Op {
+		Div(Decoded decoded, boolean unsigned) {
+			rs = decoded.rs;
+			rt = decoded.rt;
+			this.unsigned = unsigned;
+		}
+
+		void execute() throws MipsException {
+			long src1 = registers[rs], src2 = registers[rt];
+			if (unsigned) {
+				src1 &= 0xFFFFFFFFL;
+				src2 &= 0xFFFFFFFFL;
+			}
+
+			try {
+				registers[regLo] = (int) (src1 / src2);
+				registers[regHi] = (int) (src1 % src2);
+				if (registers[regLo] * src2 + registers[regHi] != src1)
+					throw new ArithmeticException();
+			}
+			catch (ArithmeticException e) {
+				throw new MipsException(exceptionOverflow);
+			}
+
+			finishLoad();
+			advancePC();
+		}
+
+		private final int rs, rt;
+
+		private final boolean unsigned;
+	}
+
+	/** MFHI or MFLO. */
+	private final class MoveFrom extends Op {
+		MoveFrom(Decoded decoded, int source) {
+			rd = decoded.dstReg;
+			this.source = source;
+		}
+
+		void execute() {
+			int dst = registers[source];
+			finishLoad();
+			registers[rd] = dst;
+			advancePC();
+		}
+
+		private final int rd, source;
+	}
+
+	/** MTHI or MTLO. */
+	private final class MoveTo extends Op {
+		MoveTo(Decoded decoded, int target) {
+			rs = decoded.rs;
+			this.target = target;
+		}
+
+		void execute() {
+			registers[target] = registers[rs];
+			finishLoad();
+			advancePC();
+		}
+
+		private final int rs, target;
+	}
+
+	/** A conditional branch, relative to the delay slot. */
+	private abstract class Branch extends Op {
+		Branch(Decoded decoded, boolean link) {
+			rs = decoded.rs;
+			rt = decoded.rt;
+			offset = decoded.branchOffset;
+			this.link = link;
+		}
+
+		abstract boolean taken();
+
+		void execute() {
+			boolean branch = taken();
+
+			int nextPC = registers[regNextPC] + 4;
+			int jtarget = registers[regNextPC] + offset;
+
+			finishLoad();
+
+			// linking branches write RA whether or not they are taken
+			if (link)
+				registers[regRA] = nextPC;
+
+			advancePC(branch ? jtarget : nextPC);
+		}
+
+		final int rs, rt, offset;
+
+		private final boolean link;
+	}
+
+	private final class Beq extends Branch {
+		Beq(Decoded decoded) {
+			super(decoded, false);
+		}
+
+		boolean taken() {
+			return registers[rs] == registers[rt];
+		}
+	}
+
+	private final class Bne extends Branch {
+		Bne(Decoded decoded) {
+			super(decoded, false);
+		}
+
+		boolean taken() {
+			return registers[rs] != registers[rt];
+		}
+	}
+
+	private final class Blez extends Branch {
+		Blez(Decoded decoded) {
+			super(decoded, false);
+		}
+
+		boolean taken() {
+			return registers[rs] <= 0;
+		}
+	}
+
+	private final class Bgtz extends Branch {
+		Bgtz(Decoded decoded) {
+			super(decoded, false);
+		}
+
+		boolean taken() {
+			return registers[rs] > 0;
+		}
+	}
+
+	private final class Bltz extends Branch {
+		Bltz(Decoded decoded, boolean link) {
+			super(decoded, link);
+		}
+
+		boolean taken() {
+			return registers[rs] < 0;
+		}
+	}
+
+	private final class Bgez extends Branch {
+		Bgez(Decoded decoded, boolean link) {
+			super(decoded, link);
+		}
+
+		boolean taken() {
+			return registers[rs] >= 0;
+		}
+	}
+
+	/** J or JAL. */
+	private final class Jump extends Op {
+		Jump(Decoded decoded, boolean link) {
+			target = decoded.target << 2;
+			this.link = link;
+		}
+
+		void execute() {
+			int nextPC = registers[regNextPC] + 4;
+			int jtarget = (registers[regNextPC] & 0xF0000000) | target;
+
+			finishLoad();
+
+			if (link)
+				registers[regRA] = nextPC;
+
+			advancePC(jtarget);
+		}
+
+		private final int target;
+
+		private final boolean link;
+	}
+
+	/** JR or JALR. */
+	private final class JumpRegister extends Op {
+		JumpRegister(Decoded decoded, boolean link) {
+			rs = decoded.rs;
+			rd = link ? decoded.dstReg : 0;
+		}
+
+		void execute() {
+			int nextPC = registers[regNextPC] + 4;
+			int jtarget = registers[rs];
+
+			finishLoad();
+
+			if (rd != 0)
+				registers[rd] = nextPC;
+
+			advancePC(jtarget);
+		}
+
+		private final int rs, rd;
+	}
+
+	private final class Syscall extends Op {
+		void execute() throws MipsException {
+			throw new MipsException(exceptionSyscall);
+		}
+	}
+
+	/** An unimplemented or invalid instruction. */
+	private final class Illegal extends Op {
+		Illegal(boolean unimplemented) {
+			this.unimplemented = unimplemented;
+		}
+
+		void execute() throws MipsException {
+			if (unimplemented)
+				System.err.println("Warning: encountered unimplemented inst");
+
+			throw new MipsException(exceptionIllegalInstruction);
+		}
+
+		private final boolean unimplemented;
+	}
+
+	/** A load or store, addressing <i>imm</i>(<i>rs</i>). */
+	private abstract class MemoryOp extends Op {
+		MemoryOp(Decoded decoded) {
+			rs = decoded.rs;
+			rt = decoded.rt;
+			imm = decoded.imm;
+			size = decoded.size;
+		}
+
+		final int rs, rt, imm, size;
+	}
+
+	private final class Load extends MemoryOp {
+		Load(Decoded decoded, boolean unsigned) {
+			super(decoded);
+			this.unsigned = unsigned;
+		}
+
+		void execute() throws MipsException {
+			int value = readMem(registers[rs] + imm, size);
+
+			if (!unsigned)
+				value = Lib.extend(value, 0, size * 8);
+
+			delayedLoad(rt, value, 0xFFFFFFFF);
+			advancePC();
+		}
+
+		private final boolean unsigned;
+	}
+
+	private final class Lwl extends MemoryOp {
+		Lwl(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() throws MipsException {
+			int addr = registers[rs] + imm;
+			int value = readMem(addr & ~0x3, 4);
+
+			// LWL shifts the input left so the addressed byte is highest
+			int preserved = (3 - (addr & 0x3)) * 8;
+
+			delayedLoad(rt, value << preserved, -1 << preserved);
+			advancePC();
+		}
+	}
+
+	private final class Lwr extends MemoryOp {
+		Lwr(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() throws MipsException {
+			int addr = registers[rs] + imm;
+			int value = readMem(addr & ~0x3, 4);
+
+			// LWR shifts the input right so the addressed byte is lowest
+			int preserved = (addr & 0x3) * 8;
+
+			delayedLoad(rt, value >>> preserved, -1 >>> preserved);
+			advancePC();
+		}
+	}
+
+	private final class Store extends MemoryOp {
+		Store(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() throws MipsException {
+			writeMem(registers[rs] + imm, size, registers[rt]);
+			finishLoad();
+			advancePC();
+		}
+	}
+
+	private final class Swl extends MemoryOp {
+		Swl(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() throws MipsException {
+			int addr = registers[rs] + imm;
+			int value = readMem(addr & ~0x3, 4);
+
+			// SWL shifts highest order byte into the addressed position
+			int preserved = (3 - (addr & 0x3)) * 8;
+			int mask = -1 >>> preserved;
+			int dst = (registers[rt] >>> preserved & mask) | (value & ~mask);
+
+			writeMem(addr & ~0x3, 4, dst);
+			finishLoad();
+			advancePC();
+		}
+	}
+
+	private final class Swr extends MemoryOp {
+		Swr(Decoded decoded) {
+			super(decoded);
+		}
+
+		void execute() throws MipsException {
+			int addr = registers[rs] + imm;
+			int value = readMem(addr & ~0x3, 4);
+
+			// SWR shifts the lowest order byte into the addressed position
+			int preserved = (addr & 0x3) * 8;
+			int mask = -1 << preserved;
+			int dst = (registers[rt] << preserved & mask) | (value & ~mask);
+
+			writeMem(addr & ~0x3, 4, dst);
+			finishLoad();
+			advancePC();
+		}
+	}
+
+	/**
+	 * The parts of a decoded instruction that depend only on the instruction
+	 * word, and not on the register file. Built once per physical instruction
+	 * word by <tt>lookupDecoded()</tt>.
+	 */
+	private static final class Decoded {
+		Decoded(int value) {
+			this.value = value;
+
+			op = Lib.extract(value, 26, 6);
+			rs = Lib.extract(value, 21, 5);
+			rt = Lib.extract(value, 16, 5);
+			rd = Lib.extract(value, 11, 5);
+			sh = Lib.extract(value, 6, 5);
+			func = Lib.extract(value, 0, 6);
+			target = Lib.extract(value, 0, 26);
+
+			Mips info;
+			switch (op) {
+			case 0:
+				info = Mips.specialtable[func];
+				break;
+			case 1:
+				info = Mips.regimmtable[rt];
+				break;
+			default:
+				info = Mips.optable[op];
+				break;
+			}
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			// get memory access size
+			if (Lib.test(Mips.SIZEB, flags))
+				size = 1;
+			else if (Lib.test(Mips.SIZEH, flags))
+				size = 2;
+			else if (Lib.test(Mips.SIZEW, flags))
+				size = 4;
+			else
+				size = 0;
+
+			// get dstReg
+			if (Lib.test(Mips.DSTRA, flags))
+				dstReg = regRA;
+			else if (format == Mips.IFMT)
+				dstReg = rt;
+			else if (format == Mips.RFMT)
+				dstReg = rd;
+			else
+				dstReg = -1;
+
+			// branch targets use the sign-extended immediate
+			int imm = Lib.extend(value, 0, 16);
+			branchOffset = imm << 2;
+
+			// get imm
+			if (Lib.test(Mips.UNSIGNED, flags)) {
+				imm &= 0xFFFF;
+			}
+			this.imm = imm;
+		}
+
+		/** The instruction word this entry was decoded from. */
+		final int value;
+
+		final int op, rs, rt, rd, sh, func, target, imm, branchOffset;
+
+		final int operation, format, flags;
+
+		final String name;
+
+		final int size, dstReg;
+	}
+
 	private static class Mips {
 		Mips() {
 		}
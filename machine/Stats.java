@@ -26,6 +26,12 @@ public final class Stats {
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
+		if (numTLBHits + numTLBMisses + numTLBFlushes > 0)
+			System.out.println("TLB: hits " + numTLBHits + ", misses "
+					+ numTLBMisses + ", flushes " + numTLBFlushes);
+		if (numDeadlinesMet + numDeadlineMisses > 0)
+			System.out.println("Deadlines: met " + numDeadlinesMet
+					+ ", missed " + numDeadlineMisses);
 		System.out.println("Network I/O: received " + numPacketsReceived
 				+ ", sent " + numPacketsSent);
 	}
@@ -63,6 +69,18 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/** The total number of translations satisfied by the TLB. */
+	public long numTLBHits = 0;
+
+	/** The total number of times the entire TLB has been flushed. */
+	public int numTLBFlushes = 0;
+
+	/** The total number of jobs that completed by their deadline. */
+	public int numDeadlinesMet = 0;
+
+	/** The total number of jobs that completed after their deadline. */
+	public int numDeadlineMisses = 0;
+
 	/** The total number of packets Nachos has sent to the network. */
 	public int numPacketsSent = 0;
 
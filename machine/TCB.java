@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +23,24 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code. It's
  * against the rules, <i>and</i> it can easily deadlock nachos.
+ * 
+ * <p>
+ * If <tt>TCB.virtualThreads</tt> is set in the configuration file and the JVM
+ * supports them, each TCB (other than the first) is bound to a virtual thread
+ * rather than a platform thread. Virtual threads are far cheaper to create and
+ * switch between, and are not subject to <tt>maxThreads</tt>.
+ * 
+ * <p>
+ * Control is handed from one TCB to the next through a single volatile
+ * token, <tt>runningTCB</tt>, with <tt>LockSupport.park()</tt> and
+ * <tt>unpark()</tt>. A waiting TCB may first spin for up to
+ * <tt>TCB.spinCount</tt> iterations before parking, which can save a host
+ * context switch when there are spare processors.
+ * 
+ * <p>
+ * When a TCB bound to a platform thread is destroyed, its Java thread is kept
+ * in a pool of up to <tt>TCB.threadPoolSize</tt> idle threads, and is reused
+ * by the next TCB to start rather than creating a new Java thread.
  */
 public final class TCB {
 	/**
@@ -39,6 +59,32 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		if (Config.getBoolean("TCB.virtualThreads", false))
+			findVirtualThreadBuilder();
+
+		spinCount = Config.getInteger("TCB.spinCount", 0);
+		threadPoolSize = Config.getInteger("TCB.threadPoolSize", threadPoolSize);
+	}
+
+	/**
+	 * Look up <tt>Thread.ofVirtual().unstarted(Runnable)</tt>. This is done
+	 * reflectively so that Nachos still builds and runs on JVMs without
+	 * virtual threads, in which case platform threads are used instead.
+	 */
+	private static void findVirtualThreadBuilder() {
+		try {
+			virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(
+					null);
+			virtualThreadUnstarted = Class.forName("java.lang.Thread$Builder")
+					.getMethod("unstarted", Runnable.class);
+		}
+		catch (Exception e) {
+			// we're in the middle of the initialization banner
+			System.out.print(" (no virtual threads)");
+			virtualThreadBuilder = null;
+			virtualThreadUnstarted = null;
+		}
 	}
 
 	/**
@@ -68,7 +114,8 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(virtualThreadBuilder != null
+				|| runningThreads.size() < maxThreads);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -91,31 +138,53 @@ public final class TCB {
 
 		if (!isFirstTCB) {
 			/*
-			 * If this is not the first TCB, we have to make a new Java thread
-			 * to run it. Creating Java threads is a privileged operation.
+			 * If this is not the first TCB, we have to find a Java thread to
+			 * run it, either an idle one from the pool or a new one. Creating
+			 * Java threads is a privileged operation.
 			 */
-			tcbTarget = new Runnable() {
-				public void run() {
-					threadroot();
-				}
-			};
+			final boolean reused;
 
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					javaThread = new Thread(tcbTarget);
-				}
-			});
+			if (virtualThreadBuilder == null && !threadPool.isEmpty()) {
+				hostThread = threadPool.remove(threadPool.size() - 1);
+				javaThread = hostThread.javaThread;
+				reused = true;
+			}
+			else {
+				tcbTarget = new Runnable() {
+					public void run() {
+						threadroot();
+					}
+				};
+
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						if (virtualThreadBuilder != null) {
+							javaThread = newVirtualThread(tcbTarget);
+						}
+						else {
+							hostThread = new HostThread(TCB.this);
+							javaThread = new Thread(hostThread);
+							hostThread.javaThread = javaThread;
+						}
+					}
+				});
+				reused = false;
+			}
 
 			/*
 			 * The Java thread hasn't yet started, but we need to get it
-			 * blocking in yield(). We do this by temporarily turning off the
-			 * current TCB, starting the new Java thread, and waiting for it to
-			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
-			 * safe to context switch to the new TCB.
+			 * blocking in yield(). We do this by temporarily handing the
+			 * running token to the new TCB, starting the new Java thread, and
+			 * waiting for it to hand the token back from threadroot(). Once
+			 * the new TCB wakes us up, it's safe to context switch to the new
+			 * TCB.
 			 */
-			currentTCB.running = false;
+			runningTCB = this;
 
-			this.javaThread.start();
+			if (reused)
+				hostThread.assign(this);
+			else
+				this.javaThread.start();
 			currentTCB.waitForInterrupt();
 		}
 		else {
@@ -130,6 +199,16 @@ public final class TCB {
 		}
 	}
 
+	private static Thread newVirtualThread(Runnable target) {
+		try {
+			return (Thread) virtualThreadUnstarted.invoke(virtualThreadBuilder,
+					target);
+		}
+		catch (Exception e) {
+			throw new Error(e);
+		}
+	}
+
 	/**
 	 * Return the TCB of the currently running thread.
 	 */
@@ -161,13 +240,13 @@ public final class TCB {
 		 * There are some synchronization concerns here. As soon as we wake up
 		 * the next thread, we cannot assume anything about static variables, or
 		 * about any TCB's state. Therefore, before waking up the next thread,
-		 * we must latch the value of currentTCB, and set its running flag to
-		 * false (so that, in case we get interrupted before we call yield(),
-		 * the interrupt will set the running flag and yield() won't block).
+		 * we must latch the value of currentTCB. Passing the running token to
+		 * the next thread takes it away from this one, so if we get
+		 * interrupted before we call yield(), the interrupt will hand the
+		 * token back and yield() won't block.
 		 */
 
 		TCB previous = currentTCB;
-		previous.running = false;
 
 		this.interrupt();
 		previous.yield();
@@ -191,7 +270,6 @@ public final class TCB {
 		toBeDestroyed = null;
 
 		this.done = true;
-		currentTCB.running = false;
 
 		this.interrupt();
 		currentTCB.waitForInterrupt();
@@ -223,10 +301,10 @@ public final class TCB {
 		if (!isFirstTCB) {
 			/*
 			 * start() is waiting for us to wake it up, signalling that it's OK
-			 * to context switch to us. We leave the running flag false so that
-			 * we'll still run if a context switch happens before we go to
-			 * sleep. All we have to do is wake up the current TCB and then wait
-			 * to get woken up by contextSwitch() or destroy().
+			 * to context switch to us. Once we hand the running token back,
+			 * a context switch can pass it to us at any time, even before we
+			 * go to sleep. All we have to do is wake up the current TCB and
+			 * then wait to get woken up by contextSwitch() or destroy().
 			 */
 
 			currentTCB.interrupt();
@@ -239,7 +317,7 @@ public final class TCB {
 			 */
 
 			currentTCB = this;
-			running = true;
+			runningTCB = this;
 		}
 
 		try {
@@ -283,6 +361,16 @@ public final class TCB {
 		waitForInterrupt();
 
 		if (done) {
+			/*
+			 * Offer our Java thread to the pool while we still hold the
+			 * running token, so that no other TCB touches the pool at the same
+			 * time. It will be picked up once threadroot() returns.
+			 */
+			if (hostThread != null && threadPool.size() < threadPoolSize) {
+				hostThread.pooled = true;
+				threadPool.add(hostThread);
+			}
+
 			currentTCB.interrupt();
 			throw new ThreadDeath();
 		}
@@ -291,32 +379,86 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * Waits until this TCB holds the running token. <tt>waitForInterrupt()</tt>
+	 * is used whenever a TCB needs to go to wait for its turn to run. This
+	 * includes the ping-pong process of starting and destroying TCBs, as well
+	 * as in context switching from this TCB to another. We don't rely on
+	 * <tt>currentTCB</tt>, since it is updated by <tt>contextSwitch()</tt>
+	 * before we get called.
+	 * 
+	 * <p>
+	 * Parking, unlike waiting on a monitor, does not pin a virtual thread to
+	 * its carrier thread.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
+	private void waitForInterrupt() {
+		for (int i = 0; i < spinCount; i++) {
+			if (runningTCB == this)
+				return;
 		}
+
+		while (runningTCB != this)
+			LockSupport.park(this);
 	}
 
 	/**
-	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * Wake up this TCB by handing it the running token and unparking its Java
+	 * thread. Used in the ping-pong process of starting and destroying TCBs,
+	 * as well as in context switching to this TCB.
 	 */
-	private synchronized void interrupt() {
-		running = true;
-		notify();
+	private void interrupt() {
+		runningTCB = this;
+		LockSupport.unpark(javaThread);
+	}
+
+	/**
+	 * The body of a platform Java thread. Runs a TCB and then, if the Java
+	 * thread was returned to the pool, waits to be assigned another TCB.
+	 */
+	private static class HostThread implements Runnable {
+		HostThread(TCB tcb) {
+			this.tcb = tcb;
+		}
+
+		public void run() {
+			while (true) {
+				TCB next = tcb;
+				tcb = null;
+
+				try {
+					next.threadroot();
+				}
+				catch (ThreadDeath e) {
+					// destroyed before it ever ran
+				}
+
+				if (!pooled)
+					return;
+
+				while (tcb == null)
+					LockSupport.park(this);
+
+				pooled = false;
+			}
+		}
+
+		/**
+		 * Assign a TCB to this idle Java thread and wake it up.
+		 */
+		void assign(TCB next) {
+			tcb = next;
+			LockSupport.unpark(javaThread);
+		}
+
+		Thread javaThread;
+
+		/** The TCB to run next, or <tt>null</tt> if none has been assigned. */
+		private volatile TCB tcb;
+
+		/**
+		 * <tt>true</tt> if this thread was put in the pool, and has not yet
+		 * picked up its next TCB.
+		 */
+		private volatile boolean pooled = false;
 	}
 
 	private void associateThread(KThread thread) {
@@ -379,6 +521,39 @@ public final class TCB {
 
 	private static KThread toBeDestroyed = null;
 
+	/**
+	 * The result of <tt>Thread.ofVirtual()</tt>, or <tt>null</tt> if virtual
+	 * threads are disabled or not supported.
+	 */
+	private static Object virtualThreadBuilder = null;
+
+	private static Method virtualThreadUnstarted = null;
+
+	/**
+	 * Idle platform Java threads available for reuse. Only accessed by the
+	 * TCB holding the running token.
+	 */
+	private static Vector<HostThread> threadPool = new Vector<HostThread>();
+
+	/** The maximum number of idle Java threads kept in <tt>threadPool</tt>. */
+	private static int threadPoolSize = 16;
+
+	/**
+	 * The number of times <tt>waitForInterrupt()</tt> checks the running
+	 * token before parking.
+	 */
+	private static int spinCount = 0;
+
+	/**
+	 * The TCB whose Java thread ought to be running. This is an entirely
+	 * different condition from membership in <tt>runningThreads</tt>, which
+	 * contains all TCB objects that have started and have not terminated.
+	 * Only the TCB holding the token runs; every other TCB is waiting in
+	 * <tt>waitForInterrupt()</tt>. When starting or destroying a TCB, the token
+	 * is temporarily held by a TCB other than the current TCB.
+	 */
+	private static volatile TCB runningTCB = null;
+
 	/**
 	 * <tt>true</tt> if and only if this TCB is the first TCB to start, the one
 	 * started in <tt>Machine.main(String[])</tt>. Initialized by
@@ -395,15 +570,10 @@ public final class TCB {
 	private Thread javaThread = null;
 
 	/**
-	 * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-	 * be running. This is an entirely different condition from membership in
-	 * <tt>runningThreads</tt>, which contains all TCB objects that have started
-	 * and have not terminated. <tt>running</tt> is only <tt>true</tt> when the
-	 * associated Java thread ought to run ASAP. When starting or destroying a
-	 * TCB, this is temporarily true for a thread other than that of the current
-	 * TCB.
+	 * The pooled host wrapping <tt>javaThread</tt>, or <tt>null</tt> if
+	 * <tt>javaThread</tt> is not a platform thread started by this class.
 	 */
-	private boolean running = false;
+	private HostThread hostThread = null;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -31,6 +31,12 @@ public final class Timer {
 			}
 		};
 
+		wakeupInterrupt = new Runnable() {
+			public void run() {
+				wakeupInterrupt();
+			}
+		};
+
 		autoGraderInterrupt = new Runnable() {
 			public void run() {
 				Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -51,6 +57,43 @@ public final class Timer {
 		this.handler = handler;
 	}
 
+	/**
+	 * Set the callback to use as a wakeup interrupt handler. The wakeup
+	 * interrupt handler will be called once for each call to
+	 * <tt>scheduleWakeup()</tt>, at the requested time.
+	 * 
+	 * @param handler the wakeup interrupt handler.
+	 */
+	public void setWakeupHandler(Runnable handler) {
+		this.wakeupHandler = handler;
+	}
+
+	/**
+	 * Request a one-shot wakeup interrupt at the specified time, replacing any
+	 * request that has not yet been delivered. Unlike the periodic timer
+	 * interrupt, this interrupt occurs at exactly the requested time.
+	 * 
+	 * @param time the time at which the interrupt should occur. If this is not
+	 * in the future, it occurs on the next clock tick.
+	 */
+	public void scheduleWakeup(long time) {
+		cancelWakeup();
+
+		long delay = Math.max(time - getTime(), 1);
+		wakeupHandle = privilege.interrupt.schedule(delay, "wakeup",
+				wakeupInterrupt);
+	}
+
+	/**
+	 * Cancel the pending wakeup interrupt, if there is one.
+	 */
+	public void cancelWakeup() {
+		if (wakeupHandle != noWakeup) {
+			privilege.interrupt.cancel(wakeupHandle);
+			wakeupHandle = noWakeup;
+		}
+	}
+
 	/**
 	 * Get the current time.
 	 * 
@@ -60,6 +103,24 @@ public final class Timer {
 		return privilege.stats.totalTicks;
 	}
 
+	/**
+	 * Record in the statistics that a job with the specified deadline has just
+	 * completed, and whether it completed in time.
+	 * 
+	 * @param deadline the time by which the job had to complete.
+	 * @return <tt>true</tt> if the deadline was met.
+	 */
+	public boolean recordDeadline(long deadline) {
+		boolean met = getTime() <= deadline;
+
+		if (met)
+			privilege.stats.numDeadlinesMet++;
+		else
+			privilege.stats.numDeadlineMisses++;
+
+		return met;
+	}
+
 	private void timerInterrupt() {
 		scheduleInterrupt();
 		scheduleAutoGraderInterrupt();
@@ -70,6 +131,13 @@ public final class Timer {
 			handler.run();
 	}
 
+	private void wakeupInterrupt() {
+		wakeupHandle = noWakeup;
+
+		if (wakeupHandler != null)
+			wakeupHandler.run();
+	}
+
 	private void scheduleInterrupt() {
 		int delay = Stats.TimerTicks;
 		delay += Lib.random(delay / 10) - (delay / 20);
@@ -87,7 +155,16 @@ public final class Timer {
 
 	private Runnable autoGraderInterrupt;
 
+	private Runnable wakeupInterrupt;
+
+	/** The handle of the pending wakeup interrupt, if any. */
+	private long wakeupHandle = noWakeup;
+
+	private static final long noWakeup = -1;
+
 	private Privilege privilege;
 
 	private Runnable handler = null;
+
+	private Runnable wakeupHandler = null;
 }
@@ -71,6 +71,28 @@ public class PostOffice {
 		return mail;
 	}
 
+	/**
+	 * Retrieve a message on the specified port, waiting at most <i>x</i> ticks
+	 * for one to arrive.
+	 * 
+	 * @param port the port on which to wait for a message.
+	 * @param x the maximum number of clock ticks to wait.
+	 * 
+	 * @return the message received, or <tt>null</tt> if none arrived in time.
+	 */
+	public MailMessage receive(int port, long x) {
+		Lib.assertTrue(port >= 0 && port < queues.length);
+
+		Lib.debug(dbgNet, "waiting for mail on port " + port);
+
+		MailMessage mail = (MailMessage) queues[port].removeFirst(x);
+
+		if (Lib.test(dbgNet))
+			System.out.println("got mail on port " + port + ": " + mail);
+
+		return mail;
+	}
+
 	/**
 	 * Wait for incoming messages, and then put them in the correct mailbox.
 	 */
@@ -146,8 +146,18 @@ public abstract class Privilege {
 		 * @param when the number of ticks until the interrupt should occur.
 		 * @param type a name for the type of interrupt being scheduled.
 		 * @param handler the interrupt handler to call.
+		 * @return a handle that can be passed to <tt>cancel()</tt>.
 		 */
-		public void schedule(long when, String type, Runnable handler);
+		public long schedule(long when, String type, Runnable handler);
+
+		/**
+		 * Cancel an interrupt scheduled by <tt>schedule()</tt>, if it has not
+		 * occurred yet.
+		 * 
+		 * @param handle the handle returned by <tt>schedule()</tt>.
+		 * @return <tt>true</tt> if the interrupt was still pending.
+		 */
+		public boolean cancel(long handle);
 
 		/**
 		 * Advance the simulated time.
@@ -157,6 +167,25 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the number of ticks until the next pending interrupt is due,
+		 * or <tt>Long.MAX_VALUE</tt> if no interrupts are pending. Until then,
+		 * advancing the simulated time cannot cause an interrupt handler to
+		 * run.
+		 * 
+		 * @return the number of ticks until the next interrupt is due.
+		 */
+		public long getTicksUntilDue();
+
+		/**
+		 * Charge the time taken by a number of user instructions, without
+		 * checking for interrupts. Must not advance the simulated time up to
+		 * the next pending interrupt.
+		 * 
+		 * @param count the number of user ticks to charge.
+		 */
+		public void chargeUserTicks(long count);
 	}
 
 	/**
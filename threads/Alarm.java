@@ -1,11 +1,19 @@
 package nachos.threads;
 
-import java.util.*;
+import java.util.Arrays;
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a heap ordered by wake time, and a one-shot
+ * wakeup interrupt is requested from the timer for the earliest of them. Each
+ * wakeup therefore only looks at the threads that are due, and a thread is
+ * made ready as soon as its time comes rather than at the next periodic timer
+ * interrupt. Each entry records its position in the heap, so a timed wait that
+ * ends early removes its entry at once.
  */
 public class Alarm {
 	/**
@@ -21,7 +29,11 @@ public class Alarm {
 				timerInterrupt();
 			}
 		});
-		waitUntilQueue = new LinkedList<waitUntilThread>();
+		Machine.timer().setWakeupHandler(new Runnable() {
+			public void run() {
+				wakeupInterrupt();
+			}
+		});
 	}
 
 	/**
@@ -32,29 +44,77 @@ public class Alarm {
 	 */
 	public void timerInterrupt() {
 		boolean intStatus = Machine.interrupt().disable();
-		long time = Machine.timer().getTime();
-		if(!waitUntilQueue.isEmpty()){
-			ListIterator<waitUntilThread> it = waitUntilQueue.listIterator();
-			while(it.hasNext()){
-				waitUntilThread thread = it.next();
-				if(time >= thread.getWakeTime()){
-					it.remove();
-					thread.getThread().ready();
-				}
-			}
-		}
+		wakeExpired();
 		Machine.interrupt().restore(intStatus);
 		KThread.currentThread().yield();
 		
 	}
-    
-	
-	
+
+	/**
+	 * The wakeup interrupt handler. This is called by the machine's timer at
+	 * the wake time of the earliest sleeping thread. Makes every thread that is
+	 * due ready, and if any was, causes the current thread to yield, so that a
+	 * woken thread the scheduler prefers runs right away.
+	 */
+	private void wakeupInterrupt() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean woken = wakeExpired();
+		Machine.interrupt().restore(intStatus);
+
+		if (woken)
+			KThread.yield();
+	}
+
+	/**
+	 * Make every sleeping thread whose wake time has come ready, and request a
+	 * wakeup interrupt for the earliest of the rest.
+	 *
+	 * @return <tt>true</tt> if any thread was made ready.
+	 */
+	private boolean wakeExpired() {
+		long time = Machine.timer().getTime();
+
+		if (size == 0 || heap[0].getWakeTime() > time)
+			return false;
+
+		boolean woken = false;
+		do {
+			waitUntilThread first = heap[0];
+			remove(first);
+			woken |= wake(first);
+		} while (size > 0 && heap[0].getWakeTime() <= time);
+
+		scheduleWakeup();
+		return woken;
+	}
+
+	/**
+	 * Wake up a sleeping thread whose time has come. If it is in a timed wait
+	 * and is still waiting for access, it is first removed from the queue it
+	 * was waiting on.
+	 *
+	 * @return <tt>true</tt> if the thread was made ready.
+	 */
+	private boolean wake(waitUntilThread sleeper) {
+		KThread thread = sleeper.getThread();
+
+		ThreadQueue waitQueue = sleeper.getWaitQueue();
+		if (waitQueue != null) {
+			// access already given; the thread is ready or running
+			if (!waitQueue.remove(thread))
+				return false;
+
+			sleeper.setTimedOut();
+		}
+
+		thread.ready();
+		return true;
+	}
 	
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
-	 * in the timer interrupt handler. The thread must be woken up (placed in
-	 * the scheduler ready set) during the first timer interrupt where
+	 * in the wakeup interrupt handler. The thread is woken up (placed in the
+	 * scheduler ready set) at the first clock tick where
 	 * 
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
@@ -64,15 +124,147 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
 		boolean intStatus = Machine.interrupt().disable();
 		long wakeTime = Machine.timer().getTime() + x;
-		waitUntilThread thread = new waitUntilThread(KThread.currentThread(), wakeTime);
-		waitUntilQueue.add(thread);
+		waitUntilThread thread = new waitUntilThread(KThread.currentThread(),
+				wakeTime, numSleeps++, null);
+		add(thread);
 		KThread.sleep();
 		Machine.interrupt().restore(intStatus);
 		
 	}
+
+	/**
+	 * Wait for access through the specified thread queue, as with
+	 * <tt>waitQueue.waitForAccess()</tt> and <tt>KThread.sleep()</tt>, but for
+	 * at most <i>x</i> ticks. If the current thread has not been given access
+	 * by then, it is removed from <tt>waitQueue</tt> in the wakeup interrupt
+	 * handler and made ready.
+	 * 
+	 * <p>
+	 * Interrupts must be disabled. This is the building block for the timed
+	 * waits of the synchronization primitives, such as
+	 * <tt>Semaphore.P(long)</tt>.
+	 * 
+	 * @param waitQueue the queue to wait on.
+	 * @param x the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the current thread was given access, or
+	 * <tt>false</tt> if the time ran out first.
+	 */
+	public boolean waitForAccess(ThreadQueue waitQueue, long x) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long wakeTime = Machine.timer().getTime() + x;
+		waitUntilThread thread = new waitUntilThread(KThread.currentThread(),
+				wakeTime, numSleeps++, waitQueue);
+		waitQueue.waitForAccess(KThread.currentThread());
+		add(thread);
+		KThread.sleep();
+
+		if (thread.timedOut())
+			return false;
+
+		// woken early; the entry must not wake the thread again. If the wake
+		// time passed before this thread ran, the entry is already gone.
+		if (thread.getIndex() != -1) {
+			boolean first = (thread.getIndex() == 0);
+			remove(thread);
+			if (first)
+				scheduleWakeup();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Add a sleeping thread to the heap, moving the wakeup interrupt earlier
+	 * if it is now the first to wake.
+	 */
+	private void add(waitUntilThread thread) {
+		if (size == heap.length)
+			heap = Arrays.copyOf(heap, size * 2);
+
+		siftUp(size++, thread);
+		if (heap[0] == thread)
+			Machine.timer().scheduleWakeup(thread.getWakeTime());
+	}
+
+	/**
+	 * Remove a sleeping thread from the heap. The wakeup interrupt is left as
+	 * it is.
+	 */
+	private void remove(waitUntilThread thread) {
+		int index = thread.getIndex();
+		waitUntilThread last = heap[--size];
+		heap[size] = null;
+
+		if (index < size) {
+			siftDown(index, last);
+			if (heap[index] == last)
+				siftUp(index, last);
+		}
+
+		thread.setIndex(-1);
+	}
+
+	/**
+	 * Request a wakeup interrupt for the first sleeping thread, or cancel the
+	 * pending one if no thread is sleeping.
+	 */
+	private void scheduleWakeup() {
+		if (size > 0)
+			Machine.timer().scheduleWakeup(heap[0].getWakeTime());
+		else
+			Machine.timer().cancelWakeup();
+	}
+
+	private void siftUp(int index, waitUntilThread thread) {
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (!before(thread, heap[parent]))
+				break;
+
+			place(index, heap[parent]);
+			index = parent;
+		}
+
+		place(index, thread);
+	}
+
+	private void siftDown(int index, waitUntilThread thread) {
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= size)
+				break;
+
+			if (child + 1 < size && before(heap[child + 1], heap[child]))
+				child++;
+
+			if (!before(heap[child], thread))
+				break;
+
+			place(index, heap[child]);
+			index = child;
+		}
+
+		place(index, thread);
+	}
+
+	private void place(int index, waitUntilThread thread) {
+		heap[index] = thread;
+		thread.setIndex(index);
+	}
+
+	/**
+	 * Return <tt>true</tt> if <i>a</i> should wake before <i>b</i>: it has an
+	 * earlier wake time, or the same wake time and started sleeping first.
+	 */
+	private static boolean before(waitUntilThread a, waitUntilThread b) {
+		if (a.getWakeTime() != b.getWakeTime())
+			return a.getWakeTime() < b.getWakeTime();
+
+		return a.getSequence() < b.getSequence();
+	}
 	
 	// Place this function inside Alarm. And make sure Alarm.selfTest() is called inside ThreadedKernel.selfTest() method.
 
@@ -91,26 +283,111 @@ public class Alarm {
 	    t1.setName("T1");
 	    t1.fork();
 	    t1.join();
+
+	    // a timed wait that is given access early leaves no sleeper behind
+	    final Semaphore s = new Semaphore(0);
+	    KThread t2 = new KThread(new Runnable() {
+	        public void run() {
+	            ThreadedKernel.alarm.waitUntil(1000);
+	            s.V();
+	        }
+	    });
+	    t2.setName("T2");
+	    t2.fork();
+	    Lib.assertTrue(s.P(100000), " timed wait was not given access.");
+	    t2.join();
+	    Lib.assertTrue(ThreadedKernel.alarm.size == 0, " timed wait left a sleeper behind.");
+
+	    // signalled, then the deadline passes before it runs: the entry is
+	    // dropped by the wakeup, and the wait still succeeds
+	    final long deadline[] = new long[1];
+	    final Runnable spin = new Runnable() {
+	        public void run() {
+	            while (Machine.timer().getTime() <= deadline[0]) {
+	                Machine.interrupt().disable();
+	                Machine.interrupt().enable();
+	            }
+	        }
+	    };
+	    KThread t3 = new KThread(new Runnable() {
+	        public void run() {
+	            ThreadedKernel.alarm.waitUntil(deadline[0] - Machine.timer().getTime() - 100);
+	            // two spinners, so that a timer interrupt preempting the first
+	            // still leaves the other ahead of the signalled thread
+	            boolean intStatus = Machine.interrupt().disable();
+	            new KThread(spin).setName("spin1").fork();
+	            new KThread(spin).setName("spin2").fork();
+	            s.V();
+	            Machine.interrupt().restore(intStatus);
+	        }
+	    });
+	    t3.setName("T3");
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    t3.fork();
+	    deadline[0] = Machine.timer().getTime() + 1000;
+	    Lib.assertTrue(s.P(1000), " signalled timed wait was not given access.");
+	    if (ThreadedKernel.scheduler instanceof RoundRobinScheduler)
+	        Lib.assertTrue(Machine.timer().getTime() > deadline[0], " signalled thread ran before its deadline.");
+	    Machine.interrupt().restore(intStatus);
+	    t3.join();
+	    Lib.assertTrue(ThreadedKernel.alarm.size == 0, " timed wait left a sleeper behind.");
 	}
 	
-	private LinkedList<waitUntilThread> waitUntilQueue = null;
-	private waitUntilThread waitUntil = null;
+	/** The sleeping threads, as a binary heap ordered by wake time. */
+	private waitUntilThread[] heap = new waitUntilThread[8];
+
+	private int size = 0;
+
+	/** The number of sleeps so far, to break ties between wake times. */
+	private long numSleeps = 0;
 }
 
 class waitUntilThread{
 	private KThread thread;
 	private long wakeTime;
-	public waitUntilThread(KThread thread, long wakeTime)
+	private long sequence;
+	private ThreadQueue waitQueue;
+	private boolean timedOut = false;
+	private int index = -1;
+	public waitUntilThread(KThread thread, long wakeTime, long sequence,
+			ThreadQueue waitQueue)
 	{
 		this.thread = thread;
 		this.wakeTime = wakeTime;
+		this.sequence = sequence;
+		this.waitQueue = waitQueue;
 	}
 	public long getWakeTime()
 	{
 		return wakeTime;
 	}
+	public long getSequence()
+	{
+		return sequence;
+	}
 	public KThread getThread()
 	{
 		return thread;
 	}
+	public ThreadQueue getWaitQueue()
+	{
+		return waitQueue;
+	}
+	public boolean timedOut()
+	{
+		return timedOut;
+	}
+	public void setTimedOut()
+	{
+		timedOut = true;
+	}
+	public int getIndex()
+	{
+		return index;
+	}
+	public void setIndex(int index)
+	{
+		this.index = index;
+	}
 } 
@@ -0,0 +1,482 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A completely fair scheduler, in the style of the Linux CFS.
+ *
+ * <p>
+ * Each thread accumulates <i>virtual runtime</i>: the simulated time (user and
+ * kernel ticks) it has spent running, scaled down by its weight. Every queue is
+ * a binary heap ordered by virtual runtime, and dequeues the thread that has
+ * run least, so over time each runnable thread receives CPU time in proportion
+ * to its weight, and none can starve. Each thread's scheduling state records
+ * its position in the heap it waits on, so waiting never allocates memory and
+ * a thread is removed from anywhere in a queue in logarithmic time.
+ *
+ * <p>
+ * Weights are derived from priorities, which range from
+ * <tt>priorityMinimum</tt> to <tt>priorityMaximum</tt> as in
+ * <tt>PriorityScheduler</tt>. Each step up in priority is worth about 25% more
+ * CPU time.
+ *
+ * <p>
+ * A thread that starts waiting on a queue after having blocked (or a new
+ * thread) has its virtual runtime raised to no less than one timer interval
+ * below that queue's minimum virtual runtime, so it is served promptly without
+ * being able to monopolize the CPU to catch up. As in Linux, the minimum
+ * virtual runtime follows the least virtual runtime among the threads the
+ * queue dispatches, but never decreases.
+ */
+public class CFSScheduler extends Scheduler {
+	/**
+	 * Allocate a new CFS scheduler.
+	 */
+	public CFSScheduler() {
+	}
+
+	/**
+	 * Allocate a new CFS thread queue. Virtual runtime is not transferred, so
+	 * <i>transferPriority</i> is ignored.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new CFS thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new CFSQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		ThreadState state = getThreadState(thread);
+
+		// charge time run so far at the old weight
+		if (thread == KThread.currentThread() && !state.queued)
+			state.charge();
+
+		state.priority = priority;
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default priority for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum priority that a thread can have.
+	 */
+	public static final int priorityMinimum = 0;
+
+	/**
+	 * The maximum priority that a thread can have.
+	 */
+	public static final int priorityMaximum = 7;
+
+	/**
+	 * Test that queues dispatch threads in order of virtual runtime, that a
+	 * thread that was blocked is brought up to the others, that a thread can be
+	 * removed from anywhere in a queue, and that CPU-bound threads of
+	 * different priorities stay close in virtual runtime. Must be run with a
+	 * <tt>CFSScheduler</tt> as the kernel's scheduler.
+	 */
+	public static void selfTest() {
+		final CFSScheduler s = (CFSScheduler) ThreadedKernel.scheduler;
+		final long interval = (long) Stats.TimerTicks * weightDefault;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadQueue queue = s.newThreadQueue(false);
+		long[] vruntimes = { 3, 1, 4, 2 };
+		KThread[] threads = new KThread[vruntimes.length];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("t" + i);
+			s.getThreadState(threads[i]).vruntime = vruntimes[i] * interval;
+			queue.waitForAccess(threads[i]);
+		}
+
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(queue.nextThread() == threads[3]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		Lib.assertTrue(queue.nextThread() == threads[2]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// a new thread starts one interval behind the last one dispatched
+		KThread late = new KThread().setName("late");
+		s.getThreadState(threads[0]).vruntime = 5 * interval;
+		queue.waitForAccess(threads[0]);
+		queue.waitForAccess(late);
+		Lib.assertTrue(s.getThreadState(late).vruntime == 3 * interval);
+		Lib.assertTrue(queue.nextThread() == late);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+
+		// removal from the middle of the heap; the others, raised to one
+		// interval behind, are ordered by id
+		for (int i = 0; i < threads.length; i++)
+			queue.waitForAccess(threads[i]);
+		Lib.assertTrue(queue.remove(threads[2]) && !queue.remove(threads[2]));
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(queue.nextThread() == threads[3]);
+		Lib.assertTrue(queue.nextThread() == threads[0]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+
+		// CPU-bound threads of different priorities
+		final long[] counts = new long[2];
+		final boolean[] done = new boolean[1];
+		KThread[] spinners = new KThread[2];
+		for (int i = 0; i < spinners.length; i++) {
+			final int id = i;
+			spinners[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!done[0]) {
+						counts[id]++;
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+					}
+				}
+			}).setName("spinner" + i);
+		}
+
+		intStatus = Machine.interrupt().disable();
+		s.setPriority(spinners[0], priorityDefault);
+		s.setPriority(spinners[1], priorityDefault + 3);
+		Machine.interrupt().restore(intStatus);
+
+		for (int i = 0; i < spinners.length; i++)
+			spinners[i].fork();
+		ThreadedKernel.alarm.waitUntil(20 * Stats.TimerTicks);
+		done[0] = true;
+		for (int i = 0; i < spinners.length; i++)
+			spinners[i].join();
+
+		long difference = s.getThreadState(spinners[1]).vruntime
+				- s.getThreadState(spinners[0]).vruntime;
+		Lib.assertTrue(Math.abs(difference) <= 4 * interval,
+				"virtual runtimes drifted apart");
+		Lib.assertTrue(counts[1] > counts[0],
+				"higher priority thread did not run more");
+	}
+
+	/**
+	 * The weight of each priority. A thread of the default priority has weight
+	 * <tt>weightDefault</tt>, and each step is a factor of about 1.25.
+	 */
+	private static final int[] weights = { 820, 1024, 1277, 1586, 1991, 2501,
+			3121, 3906 };
+
+	private static final int weightDefault = 1024;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Charge the current thread for the time it has run since it was last
+	 * charged, unless it has already queued itself to yield.
+	 */
+	private void chargeCurrentThread() {
+		KThread current = KThread.currentThread();
+		if (current == null)
+			return;
+
+		ThreadState state = getThreadState(current);
+		if (!state.queued)
+			state.charge();
+	}
+
+	private class CFSQueue extends ThreadQueue {
+		/**
+		 * Add a thread to the heap. If the thread is not the current thread,
+		 * it has been blocked or is new, and its virtual runtime is brought
+		 * close to that of the threads it will compete with.
+		 *
+		 * @param thread the thread to add.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			chargeCurrentThread();
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitQueue == null);
+
+			if (thread != KThread.currentThread())
+				state.vruntime = Math.max(state.vruntime, minVruntime
+						- (long) Stats.TimerTicks * weightDefault);
+
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+
+			siftUp(size++, state);
+			state.queued = true;
+			state.waitQueue = this;
+		}
+
+		/**
+		 * Remove the thread with the least virtual runtime.
+		 *
+		 * @return the next thread, or <tt>null</tt> if the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			chargeCurrentThread();
+
+			if (size == 0)
+				return null;
+
+			ThreadState state = heap[0];
+			remove(state);
+
+			minVruntime = Math.max(minVruntime, state.vruntime);
+			state.lastCharged = Machine.timer().getTime();
+
+			return state.thread;
+		}
+
+		/**
+		 * Remove a thread from the heap, leaving its virtual runtime as it is.
+		 *
+		 * @param thread the thread to remove.
+		 * @return <tt>true</tt> if the thread was in the heap.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitQueue != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		/**
+		 * The specified thread has received access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. This does not
+		 * affect scheduling.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		/**
+		 * Print out the contents of the queue, least virtual runtime first.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState[] sorted = Arrays.copyOf(heap, size);
+			Arrays.sort(sorted, new Comparator<ThreadState>() {
+				public int compare(ThreadState a, ThreadState b) {
+					return before(a, b) ? -1 : 1;
+				}
+			});
+
+			for (int i = 0; i < sorted.length; i++)
+				System.out.print(sorted[i].thread + "(" + sorted[i].vruntime + ") ");
+		}
+
+		/**
+		 * Remove a thread from the heap.
+		 *
+		 * @param state the thread to remove.
+		 */
+		private void remove(ThreadState state) {
+			int index = state.index;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (index < size) {
+				siftDown(index, last);
+				if (heap[index] == last)
+					siftUp(index, last);
+			}
+
+			state.index = -1;
+			state.queued = false;
+			state.waitQueue = null;
+		}
+
+		private void siftUp(int index, ThreadState state) {
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				place(index, heap[parent]);
+				index = parent;
+			}
+
+			place(index, state);
+		}
+
+		private void siftDown(int index, ThreadState state) {
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], state))
+					break;
+
+				place(index, heap[child]);
+				index = child;
+			}
+
+			place(index, state);
+		}
+
+		private void place(int index, ThreadState state) {
+			heap[index] = state;
+			state.index = index;
+		}
+
+		/**
+		 * Return <tt>true</tt> if <i>a</i> should be dequeued before <i>b</i>:
+		 * it has a lesser virtual runtime, or the same one and a lower id.
+		 */
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.vruntime != b.vruntime)
+				return a.vruntime < b.vruntime;
+
+			return a.id < b.id;
+		}
+
+		/** The waiting threads, as a binary heap ordered by virtual runtime. */
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
+
+		/**
+		 * The minimum virtual runtime of this queue. Each dispatch raises it to
+		 * the virtual runtime of the dispatched thread, the least in the
+		 * queue, but never lowers it.
+		 */
+		private long minVruntime = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			this.id = numThreadStates++;
+		}
+
+		/**
+		 * Add the time the associated thread has run since it was last charged
+		 * to its virtual runtime. Must only be called for the running thread,
+		 * which is not in any queue.
+		 */
+		void charge() {
+			long time = Machine.timer().getTime();
+
+			// scaled by weightDefault, so that low weights don't round to zero
+			vruntime += (time - lastCharged) * weightDefault * weightDefault
+					/ weights[priority];
+			lastCharged = time;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The priority of the associated thread. */
+		protected int priority = priorityDefault;
+
+		/**
+		 * The virtual runtime of the associated thread, in ticks times
+		 * <tt>weightDefault</tt>.
+		 */
+		long vruntime = 0;
+
+		/**
+		 * <tt>true</tt> if the associated thread is in a queue, so its virtual
+		 * runtime must not change.
+		 */
+		boolean queued = false;
+
+		/** The queue the associated thread is waiting on, if any. */
+		CFSQueue waitQueue = null;
+
+		/** The associated thread's position in <tt>waitQueue</tt>'s heap. */
+		int index = -1;
+
+		/** When the associated thread was last charged or dispatched. */
+		long lastCharged = Machine.timer().getTime();
+
+		/** Breaks ties between equal virtual runtimes. */
+		final long id;
+	}
+
+	private long numThreadStates = 0;
+}
@@ -8,18 +8,47 @@ import nachos.machine.*;
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ *
+ * <p>
+ * A communicator may also be given a capacity, making it a bounded channel:
+ * up to that many words are held in a ring buffer, so speakers only wait when
+ * the buffer is full and listeners only wait when it is empty. Words are
+ * always received in the order they were spoken. <tt>speakAll()</tt> and
+ * <tt>listenAll()</tt> transfer many words for a single acquisition of the
+ * lock, and a single wakeup of the threads on the other side.
+ *
+ * <p>
+ * A communicator with capacity 0 (the default) is a rendezvous: a word is only
+ * spoken once a listener is waiting for it.
+ *
+ * <p>
+ * Interrupts stay disabled for the whole of each operation, so a thread can
+ * only be preempted as it leaves, not partway through a transfer.
  */
 public class Communicator {
 	/**
-	 * Allocate a new communicator.
+	 * Allocate a new communicator, which exchanges each word directly between a
+	 * speaker and a listener.
 	 */
 	public Communicator() {
+		this(0);
+	}
+
+	/**
+	 * Allocate a new communicator that can hold the specified number of spoken
+	 * words until they are listened for.
+	 * 
+	 * @param capacity the number of words that can be buffered.
+	 */
+	public Communicator(int capacity) {
+		Lib.assertTrue(capacity >= 0);
+
+		this.capacity = capacity;
+		buffer = new int[Math.max(capacity, 1)];
+
 		conditionLock = new Lock();
 		canSpeak = new Condition2(conditionLock);
 		canListen = new Condition2(conditionLock);
-		listener = 0;
-		speaker = 0;
-		
 	}
 
 	/**
@@ -27,21 +56,53 @@ public class Communicator {
 	 * <i>word</i> to the listener.
 	 * 
 	 * <p>
-	 * Does not return until this thread is paired up with a listening thread.
-	 * Exactly one listener should receive <i>word</i>.
+	 * Does not return until this thread is paired up with a listening thread,
+	 * or <i>word</i> has been buffered. Exactly one listener should receive
+	 * <i>word</i>.
 	 * 
 	 * @param word the integer to transfer.
 	 */
 	public void speak(int word) {
 		boolean intStatus = Machine.interrupt().disable();
 		conditionLock.acquire();
-		 
-		while(listener == 0 || speaker == 1){
+
+		while (room() <= 0)
 			canSpeak.sleep();
-		}
-		speaker = 1;
-		this.word = word;
+
+		put(word);
 		canListen.wake();
+
+		conditionLock.release();
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Transfer each of <i>words</i>, in order, as if by calling
+	 * <tt>speak()</tt> for each, but waking listeners once for as many words as
+	 * there is room for at a time.
+	 * 
+	 * @param words the integers to transfer.
+	 */
+	public void speakAll(int[] words) {
+		boolean intStatus = Machine.interrupt().disable();
+		conditionLock.acquire();
+
+		for (int i = 0; i < words.length;) {
+			int amount;
+			while ((amount = room()) <= 0)
+				canSpeak.sleep();
+
+			amount = Math.min(amount, words.length - i);
+			for (int j = 0; j < amount; j++)
+				put(words[i + j]);
+			i += amount;
+
+			if (amount == 1)
+				canListen.wake();
+			else
+				canListen.wakeAll();
+		}
+
 		conditionLock.release();
 		Machine.interrupt().restore(intStatus);
 	}
@@ -55,50 +116,134 @@ public class Communicator {
 	public int listen() {
 		boolean intStatus = Machine.interrupt().disable();
 		conditionLock.acquire();
-		// no one spoken
-		if(speaker == 0){
-			listener++;
-		    canSpeak.wake();
-		    canListen.sleep();
-		}
-		speaker--;
-		listener--;
+
+		awaitWords();
+		int word = take();
+		listening--;
 		canSpeak.wake();
+
+		conditionLock.release();
+		Machine.interrupt().restore(intStatus);
+		return word;
+	}
+
+	/**
+	 * Wait for at least one word to be spoken through this communicator, and
+	 * then receive as many of the words spoken so far as fit, up to
+	 * <i>max</i>.
+	 * 
+	 * @param words the array to store the received words in, starting at
+	 * index 0.
+	 * @param max the maximum number of words to receive.
+	 * @return the number of words received, which is at least 1.
+	 */
+	public int listenAll(int[] words, int max) {
+		Lib.assertTrue(max > 0 && max <= words.length);
+
+		boolean intStatus = Machine.interrupt().disable();
+		conditionLock.acquire();
+
+		awaitWords();
+		int amount = Math.min(max, count);
+		for (int i = 0; i < amount; i++)
+			words[i] = take();
+		listening--;
+
+		if (amount == 1)
+			canSpeak.wake();
+		else
+			canSpeak.wakeAll();
+
 		conditionLock.release();
 		Machine.interrupt().restore(intStatus);
-		return this.word;
+		return amount;
+	}
+
+	/**
+	 * Register the current thread as a listener, and wait for the buffer to
+	 * hold a word. The associated lock must be held.
+	 */
+	private void awaitWords() {
+		listening++;
+		canSpeak.wake();
+
+		while (count == 0)
+			canListen.sleep();
+	}
+
+	/**
+	 * Return the number of words that can be spoken without waiting: those that
+	 * fit in the buffer, or, beyond its capacity, one for each listener that
+	 * does not yet have a word to receive.
+	 */
+	private int room() {
+		return Math.max(capacity, listening) - count;
+	}
+
+	/**
+	 * Append a word to the ring buffer, growing it if a waiting listener has
+	 * made room beyond the capacity.
+	 */
+	private void put(int word) {
+		if (count == buffer.length) {
+			int[] newBuffer = new int[buffer.length * 2];
+			for (int i = 0; i < count; i++)
+				newBuffer[i] = buffer[(head + i) % buffer.length];
+			buffer = newBuffer;
+			head = 0;
+		}
+
+		buffer[(head + count) % buffer.length] = word;
+		count++;
+	}
+
+	/**
+	 * Remove the oldest word from the ring buffer.
+	 */
+	private int take() {
+		int word = buffer[head];
+		head = (head + 1) % buffer.length;
+		count--;
+		return word;
 	}
+
 	// Place this function inside Communicator. And make sure Communicator.selfTest() is called inside ThreadedKernel.selfTest() method.
 
 	public static void selfTest(){
 	    final Communicator com = new Communicator();
-	    final long times[] = new long[4];
 	    final int words[] = new int[2];
+	    // threads can be preempted anywhere, so neither the order the listeners
+	    // arrive in nor the clock says which speaker returned first. Count
+	    // instead: no speak() may return before as many listen() calls began.
+	    final int listening[] = new int[1];
+	    final int spoken[] = new int[1];
 	    KThread speaker1 = new KThread( new Runnable () {
 	        public void run() {
 	            com.speak(4);
-	            times[0] = Machine.timer().getTime();
+	            spoken[0]++;
+	            Lib.assertTrue(spoken[0] <= listening[0], "speak returned before listen.");
 	        }
 	    });
 	    speaker1.setName("S1");
 	    KThread speaker2 = new KThread( new Runnable () {
 	        public void run() {
 	            com.speak(7);
-	            times[1] = Machine.timer().getTime();
+	            spoken[0]++;
+	            Lib.assertTrue(spoken[0] <= listening[0], "speak returned before listen.");
 	        }
 	    });
 	    speaker2.setName("S2");
 	    KThread listener1 = new KThread( new Runnable () {
 	        public void run() {
+	            listening[0]++;
 	            words[0] = com.listen();
-	            times[2] = Machine.timer().getTime();
 	        }
 	    });
 	    listener1.setName("L1");
 	    KThread listener2 = new KThread( new Runnable () {
 	        public void run() {
+	            listening[0]++;
 	            words[1] = com.listen();
-	            times[3] = Machine.timer().getTime();
 	        }
 	    });
 	    listener2.setName("L2");
@@ -106,16 +251,99 @@ public class Communicator {
 	    speaker1.fork(); speaker2.fork(); listener1.fork(); listener2.fork();
 	    speaker1.join(); speaker2.join(); listener1.join(); listener2.join();
 	    
-	    Lib.assertTrue(words[0] == 4, "Didn't listen back spoken word."); 
-	    Lib.assertTrue(words[1] == 7, "Didn't listen back spoken word.");
-	    Lib.assertTrue(times[0] < times[2], "speak returned before listen.");
-	    Lib.assertTrue(times[1] < times[3], "speak returned before listen.");
+	    // each word goes to exactly one listener, whichever listened first
+	    Lib.assertTrue((words[0] == 4 && words[1] == 7) || (words[0] == 7 && words[1] == 4),
+	                   "Didn't listen back spoken word.");
+
+	    boundedSelfTest();
+	}
+
+	/**
+	 * Test a bounded communicator: speakers block only when the buffer is
+	 * full, listeners only when it is empty, and words keep their order
+	 * through <tt>speakAll()</tt> and <tt>listenAll()</tt> as the ring buffer
+	 * wraps around.
+	 */
+	private static void boundedSelfTest() {
+		final Communicator com = new Communicator(3);
+		final boolean[] done = new boolean[1];
+		final int[] heard = new int[1];
+		int[] words = new int[8];
+
+		for (int i = 0; i < 3; i++)
+			com.speak(i);
+
+		// the buffer is full, so a fourth speaker must wait for a listener
+		KThread speaker = new KThread(new Runnable() {
+			public void run() {
+				com.speak(3);
+				done[0] = true;
+			}
+		});
+		speaker.setName("bounded speaker").fork();
+		ThreadedKernel.alarm.waitUntil(1000);
+		Lib.assertTrue(!done[0], "speak() did not wait for room.");
+
+		Lib.assertTrue(com.listen() == 0);
+		speaker.join();
+		Lib.assertTrue(done[0]);
+
+		Lib.assertTrue(com.listenAll(words, words.length) == 3);
+		for (int i = 0; i < 3; i++)
+			Lib.assertTrue(words[i] == i + 1, "words received out of order.");
+
+		// the buffer is empty, so a listener must wait for a speaker
+		done[0] = false;
+		KThread listener = new KThread(new Runnable() {
+			public void run() {
+				heard[0] = com.listen();
+				done[0] = true;
+			}
+		});
+		listener.setName("bounded listener").fork();
+		ThreadedKernel.alarm.waitUntil(1000);
+		Lib.assertTrue(!done[0], "listen() did not wait for a word.");
+
+		com.speak(99);
+		listener.join();
+		Lib.assertTrue(heard[0] == 99);
+
+		// more words than fit, spoken and received in batches, wrapping the
+		// ring buffer several times
+		final int[] batch = new int[10];
+		for (int i = 0; i < batch.length; i++)
+			batch[i] = 100 + i;
+
+		speaker = new KThread(new Runnable() {
+			public void run() {
+				com.speakAll(batch);
+			}
+		});
+		speaker.setName("batch speaker").fork();
+
+		for (int received = 0; received < batch.length;) {
+			int amount = com.listenAll(words, 4);
+			Lib.assertTrue(amount >= 1 && amount <= 3);
+			for (int i = 0; i < amount; i++)
+				Lib.assertTrue(words[i] == batch[received + i],
+						"words received out of order.");
+			received += amount;
+		}
+		speaker.join();
 	}
 	
-	private int word;
-	private Condition2 canListen ;
+	/** The number of words that can be buffered without a listener. */
+	private int capacity;
+
+	/** The spoken words not yet received, starting at <tt>head</tt>. */
+	private int[] buffer;
+	private int head = 0;
+	private int count = 0;
+
+	/** The number of threads in <tt>listen()</tt> or <tt>listenAll()</tt>. */
+	private int listening = 0;
+
+	private Condition2 canListen;
 	private Condition2 canSpeak;
-	private int listener;  // 0 mean just speaking, 1 means just listening
-	private int speaker;
 	private Lock conditionLock;
 }
@@ -2,10 +2,9 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
- * An implementation of condition variables built upon semaphores.
+ * An implementation of condition variables built upon scheduler thread
+ * queues.
  * 
  * <p>
  * A condition variable is a synchronization primitive that does not have a
@@ -60,8 +59,6 @@ public class Condition {
 	 */
 	public Condition(Lock conditionLock) {
 		this.conditionLock = conditionLock;
-
-		waitQueue = new LinkedList<Semaphore>();
 	}
 
 	/**
@@ -71,22 +68,63 @@ public class Condition {
 	 * reacquire the lock before <tt>sleep()</tt> returns.
 	 * 
 	 * <p>
-	 * This implementation uses semaphores to implement this, by allocating a
-	 * semaphore for each waiting thread. The waker will <tt>V()</tt> this
-	 * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-	 * though the lock is released before caling <tt>P()</tt>.
+	 * The thread waits directly on a scheduler thread queue, so it is woken in
+	 * whatever order the scheduler chooses, and no memory is allocated for the
+	 * wait. Interrupts are disabled from before the lock is released until the
+	 * thread is asleep, so there is no chance it will miss the wake-up.
 	 */
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		Semaphore waiter = new Semaphore(0);
-		waitQueue.add(waiter);
+		boolean intStatus = Machine.interrupt().disable();
 
 		conditionLock.release();
-		waiter.P();
+		waitQueue.waitForAccess(KThread.currentThread());
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
+
 		conditionLock.acquire();
 	}
 
+	/**
+	 * Like <tt>sleep()</tt>, but stop sleeping if the thread has not been woken
+	 * within <i>x</i> ticks. The thread always reacquires the lock before
+	 * returning.
+	 * 
+	 * @param x the maximum number of clock ticks to sleep.
+	 * @return <tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+	 * <tt>wakeAll()</tt>, or <tt>false</tt> if the time ran out first.
+	 */
+	public boolean sleepFor(long x) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		return sleepFor(conditionLock, waitQueue, x);
+	}
+
+	/**
+	 * Atomically release <i>conditionLock</i> and wait on <i>waitQueue</i>
+	 * for at most <i>x</i> ticks, then reacquire the lock. This is the timed
+	 * sleep of both <tt>Condition</tt> and <tt>Condition2</tt>.
+	 * 
+	 * @param conditionLock the lock associated with the condition variable,
+	 * which the current thread must hold.
+	 * @param waitQueue the condition variable's queue of sleeping threads.
+	 * @param x the maximum number of clock ticks to sleep.
+	 * @return <tt>true</tt> if the thread was woken before the time ran out.
+	 */
+	static boolean sleepFor(Lock conditionLock, ThreadQueue waitQueue, long x) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		conditionLock.release();
+		boolean woken = ThreadedKernel.alarm.waitForAccess(waitQueue, x);
+
+		Machine.interrupt().restore(intStatus);
+
+		conditionLock.acquire();
+		return woken;
+	}
+
 	/**
 	 * Wake up at most one thread sleeping on this condition variable. The
 	 * current thread must hold the associated lock.
@@ -94,8 +132,13 @@ public class Condition {
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		if (!waitQueue.isEmpty())
-			((Semaphore) waitQueue.removeFirst()).V();
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = waitQueue.nextThread();
+		if (thread != null)
+			thread.ready();
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -105,11 +148,17 @@ public class Condition {
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		while (!waitQueue.isEmpty())
-			wake();
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread;
+		while ((thread = waitQueue.nextThread()) != null)
+			thread.ready();
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	private Lock conditionLock;
 
-	private LinkedList<Semaphore> waitQueue;
+	private ThreadQueue waitQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
 }
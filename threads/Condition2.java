@@ -22,7 +22,7 @@ public class Condition2 {
 	 */
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
-		waitQueue = new LinkedList<KThread>();
+		waitQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 	}
 
 	/**
@@ -35,13 +35,27 @@ public class Condition2 {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
 		conditionLock.release();
-		waitQueue.add(KThread.currentThread());
-        KThread curr = KThread.currentThread();
-        curr.sleep();
+		waitQueue.waitForAccess(KThread.currentThread());
+		KThread.sleep();
 		conditionLock.acquire();
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Like <tt>sleep()</tt>, but stop sleeping if the thread has not been woken
+	 * within <i>x</i> ticks. The thread always reacquires the lock before
+	 * returning.
+	 * 
+	 * @param x the maximum number of clock ticks to sleep.
+	 * @return <tt>true</tt> if the thread was woken by <tt>wake()</tt> or
+	 * <tt>wakeAll()</tt>, or <tt>false</tt> if the time ran out first.
+	 */
+	public boolean sleepFor(long x) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		return Condition.sleepFor(conditionLock, waitQueue, x);
+	}
+
 	/**
 	 * Wake up at most one thread sleeping on this condition variable. The
 	 * current thread must hold the associated lock.
@@ -49,8 +63,9 @@ public class Condition2 {
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
-		if(waitQueue.size() > 0)
-		    waitQueue.removeFirst().ready();
+		KThread thread = waitQueue.nextThread();
+		if (thread != null)
+			thread.ready();
 		Machine.interrupt().restore(intStatus);
 		
 	}
@@ -62,9 +77,9 @@ public class Condition2 {
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
-		while(!waitQueue.isEmpty()){
-			wake();
-		}
+		KThread thread;
+		while ((thread = waitQueue.nextThread()) != null)
+			thread.ready();
 		Machine.interrupt().restore(intStatus);
 	}
 	//test 
@@ -106,9 +121,34 @@ public class Condition2 {
 	    producer.fork();
 	    consumer.join();
 	    producer.join();
+
+	    // sleepFor() gives up, or returns as soon as it is woken
+	    lock.acquire();
+	    long start = Machine.timer().getTime();
+	    Lib.assertTrue(!empty.sleepFor(1000), "sleepFor() did not time out.");
+	    Lib.assertTrue(Machine.timer().getTime() - start >= 1000, "sleepFor() timed out too early.");
+	    lock.release();
+
+	    KThread waker = new KThread( new Runnable () {
+	        public void run() {
+	            ThreadedKernel.alarm.waitUntil(1000);
+	            lock.acquire();
+	            empty.wake();
+	            lock.release();
+	        }
+	    });
+	    waker.setName("Waker");
+
+	    lock.acquire();
+	    waker.fork();
+	    start = Machine.timer().getTime();
+	    Lib.assertTrue(empty.sleepFor(100000), "sleepFor() was not woken.");
+	    Lib.assertTrue(Machine.timer().getTime() - start < 100000, "sleepFor() was not woken early.");
+	    lock.release();
+	    waker.join();
 	}
     
 	private Lock conditionLock;
 	private int count = 0;
-	private LinkedList<KThread> waitQueue;
+	private ThreadQueue waitQueue;
 }
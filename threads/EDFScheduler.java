@@ -0,0 +1,356 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Arrays;
+
+/**
+ * An earliest-deadline-first scheduler.
+ *
+ * <p>
+ * Each thread may have an absolute deadline, a time measured in ticks as
+ * returned by <tt>Machine.timer().getTime()</tt>. Every queue is a heap
+ * ordered by deadline, and dequeues the thread whose deadline is earliest.
+ * Threads without a deadline come after all threads with one, and are served
+ * in FIFO order among themselves, as in <tt>RoundRobinScheduler</tt>. Threads
+ * with equal deadlines are also served in FIFO order.
+ *
+ * <p>
+ * Deadlines are normally managed by <tt>PeriodicTask</tt>, which sets the
+ * deadline of each job as it is released. The alarm's wakeup interrupt yields
+ * after waking a thread, so a woken thread whose deadline is earlier than the
+ * current thread's preempts it at that same interrupt.
+ *
+ * <p>
+ * Each waiting thread records its position in its queue's heap, so changing
+ * its deadline or removing it takes logarithmic time.
+ *
+ * <p>
+ * Deadlines are not inherited through locks, so <i>transferPriority</i> is
+ * ignored.
+ *
+ * @see nachos.threads.PeriodicTask
+ */
+public class EDFScheduler extends Scheduler {
+	/**
+	 * Allocate a new EDF scheduler.
+	 */
+	public EDFScheduler() {
+	}
+
+	/**
+	 * Allocate a new EDF thread queue.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new EDF thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new EDFQueue();
+	}
+
+	/**
+	 * Get the absolute deadline of the specified thread. Must be called with
+	 * interrupts disabled.
+	 *
+	 * @param thread the thread whose deadline to return.
+	 * @return the deadline, or <tt>noDeadline</tt> if the thread has none.
+	 */
+	public long getDeadline(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).deadline;
+	}
+
+	/**
+	 * Set the absolute deadline of the specified thread. If the thread is
+	 * waiting, it is moved to its new place in its queue. Must be called with
+	 * interrupts disabled.
+	 *
+	 * @param thread the thread whose deadline to set.
+	 * @param deadline the new deadline, or <tt>noDeadline</tt> to remove it.
+	 */
+	public void setDeadline(KThread thread, long deadline) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(deadline >= 0);
+
+		ThreadState state = getThreadState(thread);
+		if (state.deadline == deadline)
+			return;
+
+		state.deadline = deadline;
+
+		if (state.waitQueue != null)
+			state.waitQueue.update(state);
+	}
+
+	/**
+	 * The deadline of a thread that has none.
+	 */
+	public static final long noDeadline = Long.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	private class EDFQueue extends ThreadQueue {
+		/**
+		 * Add a thread to the heap, behind every waiting thread with the same
+		 * or an earlier deadline.
+		 *
+		 * @param thread the thread to add.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitQueue == null);
+
+			state.sequence = numEnqueued++;
+			state.waitQueue = this;
+
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+
+			siftUp(size++, state);
+		}
+
+		/**
+		 * Remove the thread with the earliest deadline.
+		 *
+		 * @return the next thread, or <tt>null</tt> if the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (size == 0)
+				return null;
+
+			ThreadState state = heap[0];
+			remove(state);
+
+			return state.thread;
+		}
+
+		/**
+		 * Remove a thread from the heap.
+		 *
+		 * @param thread the thread to remove.
+		 * @return <tt>true</tt> if the thread was in the heap.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitQueue != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. This does not
+		 * affect scheduling.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		/**
+		 * Print out the contents of the queue, earliest deadline first.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState[] sorted = Arrays.copyOf(heap, size);
+			Arrays.sort(sorted, new Comparator<ThreadState>() {
+				public int compare(ThreadState a, ThreadState b) {
+					return before(a, b) ? -1 : 1;
+				}
+			});
+
+			for (int i = 0; i < sorted.length; i++) {
+				System.out.print(sorted[i].thread);
+				if (sorted[i].deadline != noDeadline)
+					System.out.print("(" + sorted[i].deadline + ")");
+				System.out.print(" ");
+			}
+		}
+
+		/**
+		 * Remove a thread from the heap.
+		 *
+		 * @param state the thread to remove.
+		 */
+		private void remove(ThreadState state) {
+			int index = state.index;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (index < size) {
+				siftDown(index, last);
+				if (heap[index] == last)
+					siftUp(index, last);
+			}
+
+			state.index = -1;
+			state.waitQueue = null;
+		}
+
+		/**
+		 * Restore the heap order after a waiting thread's deadline has
+		 * changed.
+		 *
+		 * @param state the thread whose deadline changed.
+		 */
+		void update(ThreadState state) {
+			int index = state.index;
+
+			siftUp(index, state);
+			if (heap[index] == state)
+				siftDown(index, state);
+		}
+
+		private void siftUp(int index, ThreadState state) {
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				place(index, heap[parent]);
+				index = parent;
+			}
+
+			place(index, state);
+		}
+
+		private void siftDown(int index, ThreadState state) {
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], state))
+					break;
+
+				place(index, heap[child]);
+				index = child;
+			}
+
+			place(index, state);
+		}
+
+		private void place(int index, ThreadState state) {
+			heap[index] = state;
+			state.index = index;
+		}
+
+		/**
+		 * Return <tt>true</tt> if <i>a</i> should be dequeued before <i>b</i>:
+		 * it has an earlier deadline, or the same deadline and has been
+		 * waiting longer.
+		 */
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.deadline != b.deadline)
+				return a.deadline < b.deadline;
+
+			return a.sequence < b.sequence;
+		}
+
+		/** The waiting threads, as a binary heap ordered by deadline. */
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
+	}
+
+	/**
+	 * Test that queues dispatch threads in order of deadline, with those that
+	 * have the same deadline or none in FIFO order, and that changing the
+	 * deadline of a waiting thread, or removing it, keeps the rest in order.
+	 */
+	public static void selfTest() {
+		EDFScheduler s = new EDFScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadQueue queue = s.newThreadQueue(false);
+		long[] deadlines = { 30, noDeadline, 10, 20, noDeadline, 10 };
+		KThread[] threads = new KThread[deadlines.length];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("t" + i);
+			s.setDeadline(threads[i], deadlines[i]);
+			queue.waitForAccess(threads[i]);
+		}
+
+		int[] order = { 2, 5, 3, 0, 1, 4 };
+		for (int i = 0; i < order.length; i++)
+			Lib.assertTrue(queue.nextThread() == threads[order[i]],
+					"threads not dispatched by deadline");
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// new deadlines while waiting move threads both ways
+		for (int i = 0; i < threads.length; i++)
+			queue.waitForAccess(threads[i]);
+
+		s.setDeadline(threads[0], 5);
+		s.setDeadline(threads[1], 15);
+		s.setDeadline(threads[2], 40);
+		s.setDeadline(threads[3], noDeadline);
+		Lib.assertTrue(queue.remove(threads[1]) && !queue.remove(threads[1]));
+
+		order = new int[] { 0, 5, 2, 3, 4 };
+		for (int i = 0; i < order.length; i++)
+			Lib.assertTrue(queue.nextThread() == threads[order[i]],
+					"threads not moved to their new deadlines");
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The absolute deadline of the associated thread. */
+		protected long deadline = noDeadline;
+
+		/** The queue the associated thread is waiting on, if any. */
+		EDFQueue waitQueue = null;
+
+		/** The associated thread's position in <tt>waitQueue</tt>'s heap. */
+		int index = -1;
+
+		/** When the associated thread started waiting, relative to others. */
+		long sequence = 0;
+	}
+
+	/** The number of times a thread has started waiting on any queue. */
+	private long numEnqueued = 0;
+}
@@ -327,11 +327,17 @@ public class KThread {
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
 	 * using <tt>run()</tt>.
+	 * 
+	 * <p>
+	 * If no thread is ready, nothing can happen until the next interrupt, so
+	 * simulated time skips ahead to it instead of the idle thread spinning.
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
+			Machine.interrupt().idle();
 			nextThread = idleThread;
+		}
 
 		nextThread.run();
 	}
@@ -445,6 +451,37 @@ public class KThread {
 	    Lib.assertTrue((t1.status == statusFinished), " Expected t1 to be finished.");
 	}
 
+	/**
+	 * Measure context switch speed. Two threads call <tt>yield()</tt> back and
+	 * forth, and the number of switches per second of host time is printed.
+	 * 
+	 * @param iterations the number of times each thread yields.
+	 */
+	public static void yieldBenchmark(final int iterations) {
+		KThread partner = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < iterations; i++)
+					KThread.yield();
+			}
+		});
+		partner.setName("yield benchmark");
+
+		long start = System.nanoTime();
+
+		partner.fork();
+		for (int i = 0; i < iterations; i++)
+			KThread.yield();
+		partner.join();
+
+		long elapsed = System.nanoTime() - start;
+		long switches = 2L * iterations;
+
+		System.out.println("yield benchmark: " + switches + " switches in "
+				+ elapsed / 1000000 + " ms ("
+				+ switches * 1000000000L / Math.max(elapsed, 1)
+				+ " switches/s)");
+	}
+
 	private static final char dbgThread = 't';
 
 	/**
@@ -49,6 +49,35 @@ public class Lock {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically acquire this lock, giving up if it has not become <i>free</i>
+	 * within <i>x</i> ticks. The current thread must not already hold this
+	 * lock.
+	 * 
+	 * @param x the maximum number of clock ticks to wait. If this is not
+	 * positive, do not wait at all.
+	 * @return <tt>true</tt> if the lock was acquired.
+	 */
+	public boolean tryAcquire(long x) {
+		Lib.assertTrue(!isHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+		KThread thread = KThread.currentThread();
+
+		if (lockHolder == null) {
+			waitQueue.acquire(thread);
+			lockHolder = thread;
+		}
+		else if (x > 0) {
+			ThreadedKernel.alarm.waitForAccess(waitQueue, x);
+		}
+
+		boolean acquired = (lockHolder == thread);
+
+		Machine.interrupt().restore(intStatus);
+		return acquired;
+	}
+
 	/**
 	 * Atomically release this lock, allowing other threads to acquire it.
 	 */
@@ -72,6 +101,36 @@ public class Lock {
 		return (lockHolder == KThread.currentThread());
 	}
 
+	/**
+	 * Test that a timed acquire gives up while another thread holds the lock,
+	 * and succeeds as soon as it is released.
+	 */
+	public static void selfTest() {
+		final Lock lock = new Lock();
+		final Semaphore held = new Semaphore(0);
+
+		KThread holder = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				held.V();
+				ThreadedKernel.alarm.waitUntil(2000);
+				lock.release();
+			}
+		});
+		holder.setName("holder").fork();
+		held.P();
+
+		Lib.assertTrue(!lock.tryAcquire(500), "tryAcquire() did not time out.");
+
+		long start = Machine.timer().getTime();
+		Lib.assertTrue(lock.tryAcquire(100000), "tryAcquire() failed.");
+		Lib.assertTrue(Machine.timer().getTime() - start < 100000,
+				"tryAcquire() did not return when the lock was released.");
+		lock.release();
+
+		holder.join();
+	}
+
 	private KThread lockHolder = null;
 
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
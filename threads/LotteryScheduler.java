@@ -2,29 +2,31 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
- * 
+ *
  * <p>
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
  * ticket is chosen.
- * 
+ *
  * <p>
  * Note that a lottery scheduler must be able to handle a lot of tickets
  * (sometimes billions), so it is not acceptable to maintain state for every
  * ticket.
- * 
+ *
  * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * holding a lottery, and adjusting a thread's tickets after a transfer, take
+ * logarithmic time. The lottery is drawn with <tt>Lib.random()</tt>, so runs
+ * are reproducible for a given random seed.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -35,13 +37,515 @@ public class LotteryScheduler extends PriorityScheduler {
 
 	/**
 	 * Allocate a new lottery thread queue.
-	 * 
+	 *
 	 * @param transferPriority <tt>true</tt> if this queue should transfer
 	 * tickets from waiting threads to the owning thread.
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) getLotteryState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getLotteryState(thread).effectiveTickets,
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getLotteryState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Test that each queue's ticket sums stay correct as tickets are
+	 * transferred and taken back, including when a queue grows. The test uses
+	 * its own scheduler and threads that are never forked, so it does not
+	 * depend on the scheduler in use.
+	 */
+	public static void selfTest() {
+		LotteryScheduler s = new LotteryScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+		KThread d = new KThread().setName("d");
+
+		LotteryQueue readyQueue = (LotteryQueue) s.newThreadQueue(false);
+		LotteryQueue lock = (LotteryQueue) s.newThreadQueue(true);
+
+		s.setPriority(b, 2);
+		s.setPriority(c, 4);
+		s.setPriority(d, 8);
+
+		// a holds the lock, so the tickets of its waiters are added to a's
+		lock.acquire(a);
+		readyQueue.waitForAccess(a);
+		readyQueue.waitForAccess(b);
+		checkTickets(readyQueue, 3);
+
+		lock.waitForAccess(c);
+		lock.waitForAccess(d);
+		checkTickets(lock, 12);
+		checkTickets(readyQueue, 15);
+		Lib.assertTrue(s.getEffectivePriority(a) == 13);
+
+		s.setPriority(d, 16);
+		checkTickets(lock, 20);
+		checkTickets(readyQueue, 23);
+
+		// undo the transfers one waiter at a time
+		Lib.assertTrue(lock.remove(d));
+		checkTickets(lock, 4);
+		checkTickets(readyQueue, 7);
+
+		Lib.assertTrue(lock.nextThread() == c);
+		Lib.assertTrue(s.getEffectivePriority(a) == 1);
+		checkTickets(lock, 0);
+		checkTickets(readyQueue, 3);
+
+		// reuse freed slots, and grow the queue past its initial size
+		KThread[] more = new KThread[20];
+		for (int i = 0; i < more.length; i++) {
+			more[i] = new KThread().setName("t" + i);
+			s.setPriority(more[i], i + 1);
+			lock.waitForAccess(more[i]);
+		}
+		checkTickets(lock, 210);
+		Lib.assertTrue(s.getEffectivePriority(c) == 214);
+
+		for (int i = 0; i < more.length; i += 2)
+			lock.remove(more[i]);
+		checkTickets(lock, 110);
+		Lib.assertTrue(s.getEffectivePriority(c) == 114);
+
+		while (lock.nextThread() != null)
+			;
+		checkTickets(lock, 0);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Assert that every prefix sum of a queue's Fenwick tree matches the
+	 * tickets of the threads in its slots, and that they total
+	 * <i>totalTickets</i>.
+	 */
+	private static void checkTickets(LotteryQueue queue, long totalTickets) {
+		Lib.assertTrue(queue.totalTickets == totalTickets);
+
+		long sum = 0;
+		for (int i = 0; i < queue.slots.length; i++) {
+			if (queue.slots[i] != null)
+				sum += queue.slots[i].effectiveTickets;
+
+			long prefix = 0;
+			for (int j = i + 1; j > 0; j -= j & -j)
+				prefix += queue.tree[j];
+
+			Lib.assertTrue(prefix == sum, "ticket sums do not match");
+		}
+
+		Lib.assertTrue(sum == totalTickets);
+	}
+
+	/**
+	 * The default number of tickets for a new thread. Do not change this
+	 * value.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have. Do not change this
+	 * value.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have. Do not change this
+	 * value.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the lottery state of the specified thread.
+	 *
+	 * @param thread the thread whose lottery state to return.
+	 * @return the lottery state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).waitForAccess(this);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+			getLotteryState(thread).acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState next = pickNextThread();
+			if (next == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState state = getLotteryState(thread);
+			if (state.waitQueue != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads and return the winner,
+		 * without modifying the state of this queue.
+		 *
+		 * @return the winning thread, or <tt>null</tt> if no thread is waiting.
+		 */
+		protected LotteryState pickNextThread() {
+			if (size == 0)
+				return null;
+
+			long winningTicket;
+			if (totalTickets <= Integer.MAX_VALUE)
+				winningTicket = Lib.random((int) totalTickets);
+			else
+				winningTicket = Math.min((long) (Lib.random() * totalTickets),
+						totalTickets - 1);
+
+			// find the first slot whose prefix sum exceeds the winning ticket
+			int position = 0;
+			for (int step = Integer.highestOneBit(slots.length); step > 0; step >>= 1) {
+				if (position + step <= slots.length
+						&& tree[position + step] <= winningTicket) {
+					position += step;
+					winningTicket -= tree[position];
+				}
+			}
+
+			return slots[position];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numSlots; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + "("
+							+ slots[i].effectiveTickets + ") ");
+			}
+		}
+
+		/**
+		 * Add a thread to the lottery.
+		 *
+		 * @param state the thread to add.
+		 */
+		void add(LotteryState state) {
+			int slot;
+			if (numFreeSlots > 0) {
+				slot = freeSlots[--numFreeSlots];
+			}
+			else {
+				if (numSlots == slots.length)
+					grow();
+
+				slot = numSlots++;
+			}
+
+			slots[slot] = state;
+			state.slot = slot;
+			size++;
+
+			adjust(state, state.effectiveTickets);
+			if (transferPriority && owner != null)
+				owner.addTickets(state.effectiveTickets);
+		}
+
+		/**
+		 * Remove a thread from the lottery.
+		 *
+		 * @param state the thread to remove.
+		 */
+		void remove(LotteryState state) {
+			adjust(state, -state.effectiveTickets);
+
+			slots[state.slot] = null;
+			freeSlots[numFreeSlots++] = state.slot;
+			size--;
+
+			state.slot = -1;
+			state.waitQueue = null;
+
+			if (transferPriority && owner != null)
+				owner.addTickets(-state.effectiveTickets);
+		}
+
+		/**
+		 * Change the number of tickets a waiting thread holds in this queue's
+		 * lottery. Does not pass the change on to the owner.
+		 *
+		 * @param state the waiting thread.
+		 * @param delta the change in its effective tickets.
+		 */
+		void adjust(LotteryState state, long delta) {
+			for (int i = state.slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+
+			totalTickets += delta;
+		}
+
+		/**
+		 * Make the specified thread the owner of this queue, moving the
+		 * waiting threads' tickets from the previous owner to the new one.
+		 *
+		 * @param state the new owner, or <tt>null</tt> if none.
+		 */
+		void setOwner(LotteryState state) {
+			if (!transferPriority)
+				return;
+
+			if (owner != null)
+				owner.addTickets(-totalTickets);
+
+			owner = state;
+
+			if (owner != null)
+				owner.addTickets(totalTickets);
+		}
+
+		/** Double the number of slots, rebuilding the Fenwick tree. */
+		private void grow() {
+			LotteryState[] newSlots = new LotteryState[slots.length * 2];
+			System.arraycopy(slots, 0, newSlots, 0, slots.length);
+			slots = newSlots;
+
+			int[] newFreeSlots = new int[slots.length];
+			System.arraycopy(freeSlots, 0, newFreeSlots, 0, numFreeSlots);
+			freeSlots = newFreeSlots;
+
+			tree = new long[slots.length + 1];
+			for (int i = 1; i <= slots.length; i++) {
+				if (slots[i - 1] != null)
+					tree[i] += slots[i - 1].effectiveTickets;
+
+				int parent = i + (i & -i);
+				if (parent <= slots.length)
+					tree[parent] += tree[i];
+			}
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The waiting threads, indexed by slot. Free slots are <tt>null</tt>. */
+		private LotteryState[] slots = new LotteryState[8];
+
+		/**
+		 * A Fenwick tree over the effective tickets of <tt>slots</tt>. Entry
+		 * <i>i</i> (1-based) covers the <i>i &amp; -i</i> slots ending at slot
+		 * <i>i - 1</i>.
+		 */
+		private long[] tree = new long[slots.length + 1];
+
+		/** Slots below <tt>numSlots</tt> that are not in use. */
+		private int[] freeSlots = new int[slots.length];
+
+		private int numFreeSlots = 0;
+
+		/** The number of slots that have ever been used. */
+		private int numSlots = 0;
+
+		/** The number of waiting threads. */
+		private int size = 0;
+
+		/** The total effective tickets of the waiting threads. */
+		private long totalTickets = 0;
+
+		/** The thread that owns this queue, if tickets are transferred. */
+		private LotteryState owner = null;
+	}
+
+	/**
+	 * The scheduling state of a thread in a lottery scheduler.
+	 *
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+
+			tickets = priorityDefault;
+			effectiveTickets = priorityDefault;
+		}
+
+		/**
+		 * Set the number of tickets the associated thread holds itself.
+		 *
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(long tickets) {
+			long delta = tickets - this.tickets;
+			this.tickets = tickets;
+
+			addTickets(delta);
+		}
+
+		/**
+		 * Called when the associated thread starts waiting on the specified
+		 * queue.
+		 *
+		 * @param waitQueue the queue that the associated thread is now waiting
+		 * on.
+		 */
+		public void waitForAccess(LotteryQueue waitQueue) {
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitQueue.add(this);
+		}
+
+		/**
+		 * Called when the associated thread has acquired access to whatever is
+		 * guarded by <tt>waitQueue</tt>.
+		 *
+		 * @param waitQueue the queue that was acquired.
+		 */
+		public void acquire(LotteryQueue waitQueue) {
+			Lib.assertTrue(this.waitQueue == null);
+
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Add to the effective tickets of the associated thread, and of each
+		 * thread it is transferring tickets to, directly or indirectly. Stops
+		 * if the chain of owners loops back on itself, which can only happen
+		 * if the threads are deadlocked.
+		 *
+		 * @param delta the number of tickets to add (may be negative).
+		 */
+		void addTickets(long delta) {
+			if (delta == 0)
+				return;
+
+			long mark = ++numTransfers;
+
+			for (LotteryState state = this; state != null
+					&& state.lastTransfer != mark;) {
+				state.lastTransfer = mark;
+				state.effectiveTickets += delta;
+
+				LotteryQueue queue = state.waitQueue;
+				if (queue == null)
+					break;
+
+				queue.adjust(state, delta);
+				state = queue.transferPriority ? queue.owner : null;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets held by the associated thread itself. */
+		protected long tickets;
+
+		/** The tickets held by the associated thread, including transfers. */
+		protected long effectiveTickets;
+
+		/** The queue the associated thread is waiting on, if any. */
+		private LotteryQueue waitQueue = null;
+
+		/** This thread's slot in <tt>waitQueue</tt>. */
+		private int slot = -1;
+
+		/** The last ticket transfer that reached this thread. */
+		private long lastTransfer = 0;
 	}
+
+	/** The number of ticket transfers so far, used to detect loops. */
+	private long numTransfers = 0;
 }
@@ -0,0 +1,399 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Threads are kept at one of several levels, level 0 being the most
+ * important. Every queue dequeues the longest-waiting thread at the most
+ * important non-empty level, so within a level threads are served
+ * round-robin.
+ *
+ * <p>
+ * A thread starts at level 0. The time it spends running is charged to it
+ * whenever it gives up the CPU, either because it yielded (for example when
+ * <tt>Alarm.timerInterrupt()</tt> preempts it) or because it blocked. Once it
+ * has been charged its allotment for its level, which is
+ * <tt>Stats.TimerTicks</tt> at level 0 and doubles at each level below, it
+ * is moved down a level. CPU-bound threads therefore sink, while threads that
+ * mostly wait on I/O stay near the top.
+ *
+ * <p>
+ * A thread that is made ready by another thread has just finished waiting,
+ * typically for I/O through <tt>SynchConsole</tt>, the file system, or the
+ * <tt>PostOffice</tt>. It is moved up a level, so interactive threads get the
+ * CPU quickly when their input arrives.
+ *
+ * <p>
+ * Each level is an intrusive list: a thread's scheduling state holds its links
+ * in the queue it is waiting on (a thread waits on at most one queue at a
+ * time), so waiting never allocates memory, and a thread is removed from
+ * anywhere in a queue in constant time.
+ *
+ * <p>
+ * To prevent starvation, every <tt>MLFQScheduler.boostInterval</tt> ticks
+ * (by default, 20 timer intervals) every thread is moved back to level 0. The
+ * number of levels is set by <tt>MLFQScheduler.levels</tt>, which defaults to
+ * 4.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+		boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+				20 * Stats.TimerTicks);
+
+		Lib.assertTrue(numLevels > 0 && boostInterval > 0);
+
+		nextBoost = boostInterval;
+	}
+
+	/**
+	 * Allocate a new MLFQ thread queue. MLFQ scheduling does not transfer
+	 * priority, so <i>transferPriority</i> is ignored.
+	 *
+	 * @param transferPriority ignored.
+	 * @return a new MLFQ thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQQueue();
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		ThreadState state = (ThreadState) thread.schedulingState;
+		if (state.boost != numBoosts) {
+			state.boost = numBoosts;
+			state.level = 0;
+			state.used = 0;
+		}
+
+		return state;
+	}
+
+	/**
+	 * Move every thread back to level 0 if a boost is due.
+	 */
+	private void checkBoost() {
+		long time = Machine.timer().getTime();
+		if (time < nextBoost)
+			return;
+
+		nextBoost = time + boostInterval;
+		numBoosts++;
+	}
+
+	/**
+	 * Return the number of ticks a thread may run at the specified level
+	 * before it is moved down.
+	 */
+	private long allotment(int level) {
+		return (long) Stats.TimerTicks << level;
+	}
+
+	private class MLFQQueue extends ThreadQueue {
+		MLFQQueue() {
+			first = new ThreadState[numLevels];
+			last = new ThreadState[numLevels];
+		}
+
+		/**
+		 * Add a thread to the end of the queue for its level, after adjusting
+		 * its level according to how it came to be waiting.
+		 *
+		 * @param thread the thread to append to the queue.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			checkBoost();
+			normalize();
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.queue == null);
+
+			if (thread == KThread.currentThread()) {
+				// giving up the CPU: charge the time it just ran
+				state.used += Machine.timer().getTime() - state.dispatched;
+				if (state.used >= allotment(state.level)) {
+					if (state.level < numLevels - 1)
+						state.level++;
+					state.used = 0;
+				}
+			}
+			else if (state.level > 0) {
+				// woken up after waiting
+				state.level--;
+				state.used = 0;
+			}
+
+			state.queue = this;
+			state.prev = last[state.level];
+			if (last[state.level] == null)
+				first[state.level] = state;
+			else
+				last[state.level].next = state;
+			last[state.level] = state;
+		}
+
+		/**
+		 * Remove the first thread at the most important non-empty level.
+		 *
+		 * @return the next thread, or <tt>null</tt> if the queue is empty.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			checkBoost();
+			normalize();
+
+			for (int i = 0; i < numLevels; i++) {
+				if (first[i] != null) {
+					KThread thread = first[i].thread;
+					unlink(first[i]);
+					getThreadState(thread).dispatched = Machine.timer()
+							.getTime();
+					return thread;
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * Remove a thread from whichever level it is waiting at.
+		 *
+		 * @param thread the thread to remove.
+		 * @return <tt>true</tt> if the thread was in the queue.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = (ThreadState) thread.schedulingState;
+			if (state == null || state.queue != this)
+				return false;
+
+			unlink(state);
+			return true;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>. This does not
+		 * affect scheduling.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+		}
+
+		/**
+		 * Print out the contents of the queue, most important level first.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numLevels; i++) {
+				for (ThreadState state = first[i]; state != null; state = state.next)
+					System.out.print(state.thread + "[" + i + "] ");
+			}
+		}
+
+		/**
+		 * Unlink a waiting thread from its level. Only the first and last
+		 * thread at a level are referred to by the queue, so the level is
+		 * looked up only for them, by checking each level's ends.
+		 */
+		private void unlink(ThreadState state) {
+			int level = 0;
+			if (state.prev == null || state.next == null) {
+				while (first[level] != state && last[level] != state)
+					level++;
+			}
+
+			if (state.prev == null)
+				first[level] = state.next;
+			else
+				state.prev.next = state.next;
+
+			if (state.next == null)
+				last[level] = state.prev;
+			else
+				state.next.prev = state.prev;
+
+			state.prev = state.next = null;
+			state.queue = null;
+		}
+
+		/**
+		 * If there has been a boost since this queue was last used, move every
+		 * waiting thread to level 0, keeping more important threads first.
+		 * Each level is spliced onto the end of level 0 as a whole.
+		 */
+		private void normalize() {
+			if (boost == numBoosts)
+				return;
+
+			boost = numBoosts;
+
+			for (int i = 1; i < numLevels; i++) {
+				if (first[i] == null)
+					continue;
+
+				if (last[0] == null)
+					first[0] = first[i];
+				else
+					last[0].next = first[i];
+				first[i].prev = last[0];
+				last[0] = last[i];
+
+				first[i] = last[i] = null;
+			}
+		}
+
+		/** The first and last thread waiting at each level. */
+		private ThreadState[] first, last;
+
+		/** The boost this queue was last normalized for. */
+		private int boost = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected class ThreadState {
+		ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/** The thread with which this object is associated. */
+		KThread thread;
+
+		/** The thread's level; 0 is the most important. */
+		int level = 0;
+
+		/** The ticks charged to the thread at its current level. */
+		long used = 0;
+
+		/** When the thread was last dispatched. */
+		long dispatched = Machine.timer().getTime();
+
+		/** The boost this state was last reset for. */
+		int boost = numBoosts;
+
+		/** The queue the thread is waiting on, or <tt>null</tt> if none. */
+		MLFQQueue queue = null;
+
+		/** The neighbouring threads at the same level of that queue. */
+		ThreadState prev = null, next = null;
+	}
+
+	/**
+	 * Test that a thread that uses up its allotment moves down a level, that a
+	 * thread made ready by another moves up one, that queues serve the most
+	 * important level first and remove threads from anywhere, and that a
+	 * boost brings every waiting thread back to level 0. Must be run with an
+	 * <tt>MLFQScheduler</tt> as the kernel's scheduler, and does nothing if it
+	 * has fewer than three levels.
+	 */
+	public static void selfTest() {
+		MLFQScheduler s = (MLFQScheduler) ThreadedKernel.scheduler;
+		if (s.numLevels < 3)
+			return;
+
+		// time stands still while interrupts are disabled, so after a boost
+		// that is due now, there is none until the one forced below
+		boolean intStatus = Machine.interrupt().disable();
+		long time = Machine.timer().getTime();
+		s.checkBoost();
+
+		KThread current = KThread.currentThread();
+		ThreadState self = s.getThreadState(current);
+		int level = self.level;
+		long used = self.used;
+		long dispatched = self.dispatched;
+
+		ThreadQueue queue = s.newThreadQueue(false);
+
+		// giving up the CPU with its allotment used up moves a thread down
+		self.level = 0;
+		self.used = 0;
+		self.dispatched = time - s.allotment(0);
+		queue.waitForAccess(current);
+		Lib.assertTrue(self.level == 1 && self.used == 0,
+				"thread was not moved down");
+		Lib.assertTrue(queue.nextThread() == current);
+
+		// with some left, it stays at its level and keeps what it used
+		self.dispatched = time - s.allotment(1) / 2;
+		queue.waitForAccess(current);
+		Lib.assertTrue(self.level == 1 && self.used == s.allotment(1) / 2,
+				"thread was not charged");
+		Lib.assertTrue(queue.nextThread() == current);
+
+		self.level = level;
+		self.used = used;
+		self.dispatched = dispatched;
+
+		// a thread made ready by another moves up, and the more important
+		// level is served first
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+		s.getThreadState(a).level = 2;
+		queue.waitForAccess(a);
+		queue.waitForAccess(b);
+		Lib.assertTrue(s.getThreadState(a).level == 1,
+				"woken thread was not moved up");
+		Lib.assertTrue(queue.nextThread() == b);
+		Lib.assertTrue(queue.nextThread() == a);
+
+		// removal from the middle, the end, and the front of a level
+		s.getThreadState(a).level = 1;
+		queue.waitForAccess(b);
+		queue.waitForAccess(c);
+		queue.waitForAccess(a);
+		Lib.assertTrue(queue.remove(c) && !queue.remove(c));
+		Lib.assertTrue(queue.remove(a));
+		queue.waitForAccess(a);
+		Lib.assertTrue(queue.remove(b));
+		Lib.assertTrue(queue.nextThread() == a);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		// after a boost, the waiting threads are all at level 0, ahead of one
+		// that arrives later
+		KThread d = new KThread().setName("d");
+		s.getThreadState(b).level = 2;
+		queue.waitForAccess(c);
+		queue.waitForAccess(b);
+		s.nextBoost = time;
+		queue.waitForAccess(d);
+		Lib.assertTrue(s.getThreadState(b).level == 0, "boost missed a thread");
+		Lib.assertTrue(queue.nextThread() == c);
+		Lib.assertTrue(queue.nextThread() == b);
+		Lib.assertTrue(queue.nextThread() == d);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private int numLevels;
+
+	private long boostInterval;
+
+	private long nextBoost;
+
+	/** The number of boosts so far. */
+	private int numBoosts = 0;
+}
@@ -0,0 +1,236 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel thread that runs a job periodically, with a soft deadline for each
+ * run.
+ *
+ * <p>
+ * The job is first released when the task is forked, and again every
+ * <i>period</i> ticks after that. Each run must complete within
+ * <i>deadline</i> ticks of its release. Between runs the thread sleeps using
+ * <tt>Alarm.waitUntil()</tt>. If a run overruns into the following periods,
+ * the releases it overlapped are skipped, so the task never falls further
+ * behind.
+ *
+ * <p>
+ * Whether each run met its deadline is counted in the machine statistics. If
+ * the scheduler is an <tt>EDFScheduler</tt>, the thread's deadline is also set
+ * to that of its current run, so that it is scheduled ahead of threads with
+ * later deadlines.
+ *
+ * @see nachos.threads.EDFScheduler
+ */
+public class PeriodicTask {
+	/**
+	 * Allocate a new periodic task, whose runs must complete before the next
+	 * one is released.
+	 *
+	 * @param job the job to run each period.
+	 * @param period the number of ticks between releases.
+	 */
+	public PeriodicTask(Runnable job, long period) {
+		this(job, period, period);
+	}
+
+	/**
+	 * Allocate a new periodic task.
+	 *
+	 * @param job the job to run each period.
+	 * @param period the number of ticks between releases.
+	 * @param deadline the number of ticks after its release by which each run
+	 * must complete.
+	 */
+	public PeriodicTask(Runnable job, long period, long deadline) {
+		Lib.assertTrue(job != null && period > 0 && deadline > 0);
+
+		this.job = job;
+		this.period = period;
+		this.deadline = deadline;
+
+		thread = new KThread(new Runnable() {
+			public void run() {
+				runTask();
+			}
+		});
+	}
+
+	/**
+	 * Set the name of the thread that runs this task.
+	 *
+	 * @param name the name to give the thread.
+	 * @return this task.
+	 */
+	public PeriodicTask setName(String name) {
+		thread.setName(name);
+		return this;
+	}
+
+	/**
+	 * Get the thread that runs this task.
+	 *
+	 * @return the thread that runs this task.
+	 */
+	public KThread getThread() {
+		return thread;
+	}
+
+	/**
+	 * Release the first run of this task, and start its thread.
+	 */
+	public void fork() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		release = Machine.timer().getTime();
+		setDeadline(release + deadline);
+
+		thread.fork();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Stop this task once its current run completes. The thread then
+	 * finishes, and can be joined.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Return the number of runs that have completed.
+	 *
+	 * @return the number of runs that have completed.
+	 */
+	public int getRuns() {
+		return numRuns;
+	}
+
+	/**
+	 * Return the number of runs that completed after their deadline.
+	 *
+	 * @return the number of runs that missed their deadline.
+	 */
+	public int getMisses() {
+		return numMisses;
+	}
+
+	/**
+	 * Test that runs are counted, and counted as misses if they complete after
+	 * their deadline. Under an <tt>EDFScheduler</tt>, also test that released
+	 * runs preempt CPU-bound threads without a deadline, and so meet short
+	 * deadlines.
+	 */
+	public static void selfTest() {
+		long time = Machine.timer().getTime();
+		Lib.assertTrue(Machine.timer().recordDeadline(time));
+		Lib.assertTrue(!Machine.timer().recordDeadline(time - 1));
+
+		// every other run sleeps past its deadline
+		final PeriodicTask[] task = new PeriodicTask[1];
+		task[0] = new PeriodicTask(new Runnable() {
+			public void run() {
+				if (task[0].getRuns() % 2 == 1)
+					ThreadedKernel.alarm.waitUntil(300);
+				if (task[0].getRuns() == 3)
+					task[0].cancel();
+			}
+		}, 1000, 200).setName("periodic");
+
+		task[0].fork();
+		task[0].getThread().join();
+		Lib.assertTrue(task[0].getRuns() == 4 && task[0].getMisses() == 2,
+				"deadline misses not counted");
+
+		if (!(ThreadedKernel.scheduler instanceof EDFScheduler))
+			return;
+
+		final boolean[] done = new boolean[1];
+		KThread[] spinners = new KThread[3];
+		for (int i = 0; i < spinners.length; i++) {
+			spinners[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!done[0]) {
+						Machine.interrupt().disable();
+						Machine.interrupt().enable();
+					}
+				}
+			}).setName("spinner" + i);
+			spinners[i].fork();
+		}
+
+		task[0] = new PeriodicTask(new Runnable() {
+			public void run() {
+				if (task[0].getRuns() == 9)
+					task[0].cancel();
+			}
+		}, 300, 50).setName("urgent");
+
+		task[0].fork();
+		task[0].getThread().join();
+		done[0] = true;
+		for (int i = 0; i < spinners.length; i++)
+			spinners[i].join();
+
+		Lib.assertTrue(task[0].getRuns() == 10 && task[0].getMisses() == 0,
+				"released runs did not preempt");
+	}
+
+	private void runTask() {
+		while (true) {
+			job.run();
+
+			boolean intStatus = Machine.interrupt().disable();
+
+			long time = Machine.timer().getTime();
+
+			numRuns++;
+			if (!Machine.timer().recordDeadline(release + deadline))
+				numMisses++;
+
+			if (cancelled) {
+				setDeadline(EDFScheduler.noDeadline);
+				Machine.interrupt().restore(intStatus);
+				break;
+			}
+
+			release += period;
+			if (release < time)
+				release += (time - release + period - 1) / period * period;
+
+			setDeadline(release + deadline);
+
+			Machine.interrupt().restore(intStatus);
+
+			ThreadedKernel.alarm.waitUntil(release - time);
+		}
+	}
+
+	/**
+	 * Pass the deadline of the current run on to the scheduler, if it uses
+	 * deadlines.
+	 */
+	private void setDeadline(long absoluteDeadline) {
+		if (ThreadedKernel.scheduler instanceof EDFScheduler)
+			((EDFScheduler) ThreadedKernel.scheduler).setDeadline(thread,
+					absoluteDeadline);
+	}
+
+	private Runnable job;
+
+	private long period;
+
+	private long deadline;
+
+	private KThread thread;
+
+	/** When the current run was released. */
+	private long release;
+
+	private boolean cancelled = false;
+
+	private int numRuns = 0;
+
+	private int numMisses = 0;
+}
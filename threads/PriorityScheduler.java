@@ -2,9 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * A scheduler that chooses threads based on their priorities.
@@ -25,6 +24,13 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ * 
+ * <p>
+ * Each queue is a binary heap, so waiting and dequeuing take logarithmic time.
+ * Each thread's effective priority is cached, and is only recomputed when
+ * something it depends on changes: its own priority, or the highest effective
+ * priority waiting on a queue it owns. A change is then propagated along the
+ * chain of owners, one heap adjustment per link.
  */
 public class PriorityScheduler extends Scheduler {
 	/**
@@ -97,6 +103,64 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Test donation through a chain of queues, and priority changes while a
+	 * thread is waiting. The test uses its own scheduler and threads that are
+	 * never forked, so it does not depend on the scheduler in use.
+	 */
+	public static void selfTest() {
+		PriorityScheduler s = new PriorityScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+		KThread d = new KThread().setName("d");
+
+		PriorityQueue readyQueue = (PriorityQueue) s.newThreadQueue(false);
+		PriorityQueue lock1 = (PriorityQueue) s.newThreadQueue(true);
+		PriorityQueue lock2 = (PriorityQueue) s.newThreadQueue(true);
+
+		// a holds lock1, b waits for it while holding lock2, c waits for lock2
+		lock1.acquire(a);
+		lock2.acquire(b);
+		lock1.waitForAccess(b);
+		lock2.waitForAccess(c);
+
+		s.setPriority(d, 3);
+		readyQueue.waitForAccess(a);
+		readyQueue.waitForAccess(d);
+		Lib.assertTrue(readyQueue.pickNextThread().thread == d);
+
+		// raising c's priority is donated along the chain to b and a
+		s.setPriority(c, 6);
+		Lib.assertTrue(s.getEffectivePriority(b) == 6);
+		Lib.assertTrue(s.getEffectivePriority(a) == 6);
+		Lib.assertTrue(readyQueue.pickNextThread().thread == a);
+
+		// lowering it while c is waiting takes the donation back
+		s.setPriority(c, 2);
+		Lib.assertTrue(s.getEffectivePriority(a) == 2);
+		Lib.assertTrue(readyQueue.pickNextThread().thread == d);
+
+		s.setPriority(d, 0);
+		s.setPriority(c, 7);
+		Lib.assertTrue(readyQueue.nextThread() == a);
+		Lib.assertTrue(readyQueue.nextThread() == d);
+
+		// once c gets lock2, b and a no longer receive its priority
+		Lib.assertTrue(lock2.nextThread() == c);
+		Lib.assertTrue(s.getEffectivePriority(b) == priorityDefault);
+		Lib.assertTrue(s.getEffectivePriority(a) == priorityDefault);
+
+		Lib.assertTrue(lock1.nextThread() == b);
+		Lib.assertTrue(lock1.nextThread() == null);
+		Lib.assertTrue(lock2.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -145,8 +209,28 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitQueue != this)
+				return false;
+
+			remove(state);
+			return true;
 		}
 
 		/**
@@ -156,13 +240,159 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			if (size == 0)
+				return null;
+
+			return heap[0];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			ThreadState[] sorted = Arrays.copyOf(heap, size);
+			Arrays.sort(sorted, new Comparator<ThreadState>() {
+				public int compare(ThreadState a, ThreadState b) {
+					return before(a, b) ? -1 : 1;
+				}
+			});
+
+			for (int i = 0; i < sorted.length; i++)
+				System.out.print(sorted[i].thread + " ");
+		}
+
+		/**
+		 * Add a thread to the heap.
+		 * 
+		 * @param state the thread to add.
+		 */
+		void add(ThreadState state) {
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+
+			siftUp(size++, state);
+			updateDonation();
+		}
+
+		/**
+		 * Remove a thread from the heap.
+		 * 
+		 * @param state the thread to remove.
+		 */
+		void remove(ThreadState state) {
+			int index = state.index;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (index < size) {
+				siftDown(index, last);
+				if (heap[index] == last)
+					siftUp(index, last);
+			}
+
+			state.index = -1;
+			state.waitQueue = null;
+			updateDonation();
+		}
+
+		/**
+		 * Restore the heap order after a waiting thread's effective priority
+		 * has changed.
+		 * 
+		 * @param state the thread whose effective priority changed.
+		 */
+		void update(ThreadState state) {
+			int index = state.index;
+
+			siftUp(index, state);
+			if (heap[index] == state)
+				siftDown(index, state);
+
+			updateDonation();
+		}
+
+		/**
+		 * Make the specified thread the owner of this queue, taking away the
+		 * previous owner's donation.
+		 * 
+		 * @param state the new owner, or <tt>null</tt> if none.
+		 */
+		void setOwner(ThreadState state) {
+			if (!transferPriority)
+				return;
+
+			if (owner != null && donation != noDonation)
+				owner.changeDonation(donation, noDonation);
+
+			owner = state;
+			donation = noDonation;
+			updateDonation();
+		}
+
+		/**
+		 * Make the owner's donation from this queue match the highest effective
+		 * priority waiting on it.
+		 */
+		private void updateDonation() {
+			if (!transferPriority || owner == null)
+				return;
+
+			int newDonation = (size == 0) ? noDonation
+					: heap[0].effectivePriority;
+			if (newDonation == donation)
+				return;
+
+			int oldDonation = donation;
+			donation = newDonation;
+			owner.changeDonation(oldDonation, newDonation);
+		}
+
+		private void siftUp(int index, ThreadState state) {
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				place(index, heap[parent]);
+				index = parent;
+			}
+
+			place(index, state);
+		}
+
+		private void siftDown(int index, ThreadState state) {
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], state))
+					break;
+
+				place(index, heap[child]);
+				index = child;
+			}
+
+			place(index, state);
+		}
+
+		private void place(int index, ThreadState state) {
+			heap[index] = state;
+			state.index = index;
+		}
+
+		/**
+		 * Return <tt>true</tt> if <i>a</i> should be dequeued before <i>b</i>:
+		 * it has a higher effective priority, or the same effective priority
+		 * and has been waiting longer.
+		 */
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.effectivePriority != b.effectivePriority)
+				return a.effectivePriority > b.effectivePriority;
+
+			return a.waitTime < b.waitTime;
 		}
 
 		/**
@@ -170,6 +400,17 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The waiting threads, as a binary heap. */
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
+
+		/** The thread that owns this queue, if priority is transferred. */
+		private ThreadState owner = null;
+
+		/** The effective priority this queue currently donates to its owner. */
+		private int donation = noDonation;
 	}
 
 	/**
@@ -207,8 +448,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +462,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +478,11 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(this.waitQueue == null);
+
+			this.waitQueue = waitQueue;
+			waitTime = numWaits++;
+			waitQueue.add(this);
 		}
 
 		/**
@@ -252,7 +496,46 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(this.waitQueue == null);
+
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Replace one donation to this thread, from a queue it owns, with
+		 * another. Either may be <tt>noDonation</tt>.
+		 */
+		void changeDonation(int oldDonation, int newDonation) {
+			if (oldDonation != noDonation)
+				donations[oldDonation]--;
+			if (newDonation != noDonation)
+				donations[newDonation]++;
+
+			updateEffectivePriority();
+		}
+
+		/**
+		 * Recompute the effective priority from this thread's own priority and
+		 * the donations it has received. If it changed, reposition this thread
+		 * in the queue it is waiting on, which passes the change on to that
+		 * queue's owner.
+		 */
+		private void updateEffectivePriority() {
+			int newPriority = priority;
+			for (int p = priorityMaximum; p > priority; p--) {
+				if (donations[p] > 0) {
+					newPriority = p;
+					break;
+				}
+			}
+
+			if (newPriority == effectivePriority)
+				return;
+
+			effectivePriority = newPriority;
+
+			if (waitQueue != null)
+				waitQueue.update(this);
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +543,29 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/**
+		 * The number of queues owned by the associated thread that donate each
+		 * priority.
+		 */
+		private int[] donations = new int[priorityMaximum + 1];
+
+		/** The queue the associated thread is waiting on, if any. */
+		private PriorityQueue waitQueue = null;
+
+		/** This thread's position in <tt>waitQueue</tt>'s heap. */
+		private int index = -1;
+
+		/** When this thread started waiting, to break ties. */
+		private long waitTime;
 	}
+
+	/** Marks a queue that donates nothing to its owner. */
+	private static final int noDonation = -1;
+
+	/** The number of times any thread has waited, used to order waits. */
+	private long numWaits = 0;
 }
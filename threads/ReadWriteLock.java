@@ -0,0 +1,362 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that may be held either by any number of
+ * <i>readers</i> at once, or by a single <i>writer</i>. It suits data that is
+ * read far more often than it is changed, since readers do not serialize.
+ *
+ * <p>
+ * Writers, and readers that have to wait for a writer, queue on an internal
+ * <tt>Lock</tt>, so they donate priority to the writer holding this lock as
+ * they would to the holder of a <tt>Lock</tt>. A writer waiting for the
+ * current readers to finish does not donate priority to them.
+ *
+ * <p>
+ * With <i>writer preference</i> (the default), a reader that arrives while a
+ * writer is waiting queues behind that writer, so a steady stream of readers
+ * cannot starve writers. Without it, a reader may join readers already holding
+ * the lock even if a writer is waiting.
+ *
+ * <p>
+ * The lock is not reentrant: a thread must not acquire it again, in either
+ * mode, while holding it.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock that prefers writers. The lock will
+	 * initially be <i>free</i>.
+	 */
+	public ReadWriteLock() {
+		this(true);
+	}
+
+	/**
+	 * Allocate a new read-write lock. The lock will initially be <i>free</i>.
+	 *
+	 * @param writerPreference <tt>true</tt> if arriving readers should wait
+	 * for writers that are already waiting.
+	 */
+	public ReadWriteLock(boolean writerPreference) {
+		this.writerPreference = writerPreference;
+	}
+
+	/**
+	 * Acquire this lock for reading, waiting while a writer holds it (or,
+	 * with writer preference, while a writer is waiting for it).
+	 */
+	public void acquireRead() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (!writerPreference && readers > 0) {
+			readers++;
+		}
+		else {
+			gate.acquire();
+			readers++;
+			gate.release();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Release this lock after reading. The last reader to leave lets a
+	 * waiting writer in.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(readers > 0);
+
+		if (--readers == 0) {
+			KThread thread = drainQueue.nextThread();
+			if (thread != null)
+				thread.ready();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Acquire this lock for writing, waiting until no other thread holds it.
+	 */
+	public void acquireWrite() {
+		gate.acquire();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (readers > 0) {
+			drainQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Acquire this lock for writing, giving up if no other thread has stopped
+	 * holding it within <i>x</i> ticks.
+	 *
+	 * @param x the maximum number of clock ticks to wait.
+	 * @return <tt>true</tt> if the lock was acquired.
+	 */
+	public boolean tryAcquireWrite(long x) {
+		long deadline = Machine.timer().getTime() + x;
+
+		if (!gate.tryAcquire(x))
+			return false;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (readers > 0) {
+			long remaining = deadline - Machine.timer().getTime();
+			if (remaining <= 0)
+				break;
+
+			ThreadedKernel.alarm.waitForAccess(drainQueue, remaining);
+		}
+
+		boolean acquired = (readers == 0);
+		if (!acquired)
+			gate.release();
+
+		Machine.interrupt().restore(intStatus);
+		return acquired;
+	}
+
+	/**
+	 * Release this lock after writing.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		gate.release();
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return gate.isHeldByCurrentThread();
+	}
+
+	/**
+	 * Return a <tt>Lock</tt> whose operations acquire and release this lock
+	 * for writing. It can be used with condition variables, which release and
+	 * reacquire it as a whole.
+	 *
+	 * @return the write side of this lock.
+	 */
+	public Lock writeLock() {
+		return writeLock;
+	}
+
+	/**
+	 * Test that readers share this lock, that a waiting writer holds back new
+	 * readers only with writer preference, that threads waiting for a writer
+	 * donate priority to it while a writer waiting for readers does not donate
+	 * to them, and that <tt>tryAcquireWrite()</tt> gives up in time.
+	 */
+	public static void selfTest() {
+		final ReadWriteLock lock = new ReadWriteLock();
+		final boolean[] done = new boolean[1];
+
+		lock.acquireRead();
+		KThread reader = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireRead();
+				done[0] = true;
+				lock.releaseRead();
+			}
+		});
+		reader.setName("reader").fork();
+		ThreadedKernel.alarm.waitUntil(500);
+		Lib.assertTrue(done[0], "readers did not share the lock.");
+		lock.releaseRead();
+		reader.join();
+
+		// a reader arriving while a writer waits for the readers to leave
+		for (int i = 0; i < 2; i++) {
+			final boolean writerPreference = (i == 0);
+			final ReadWriteLock rw = new ReadWriteLock(writerPreference);
+			final char[] order = new char[2];
+			final int[] count = new int[1];
+
+			rw.acquireRead();
+			KThread writer = new KThread(new Runnable() {
+				public void run() {
+					rw.acquireWrite();
+					order[count[0]++] = 'w';
+					rw.releaseWrite();
+				}
+			});
+			writer.setName("writer").fork();
+			ThreadedKernel.alarm.waitUntil(500);
+
+			reader = new KThread(new Runnable() {
+				public void run() {
+					rw.acquireRead();
+					order[count[0]++] = 'r';
+					rw.releaseRead();
+				}
+			});
+			reader.setName("reader").fork();
+			ThreadedKernel.alarm.waitUntil(500);
+
+			Lib.assertTrue(count[0] == (writerPreference ? 0 : 1),
+					"writer preference not followed.");
+			rw.releaseRead();
+			writer.join();
+			reader.join();
+
+			Lib.assertTrue(count[0] == 2);
+			Lib.assertTrue(new String(order).equals(writerPreference ? "wr"
+					: "rw"), "writer preference not followed.");
+		}
+
+		if (ThreadedKernel.scheduler instanceof PriorityScheduler
+				|| ThreadedKernel.scheduler instanceof StrideScheduler)
+			donationSelfTest();
+
+		// a writer gives up while a reader holds on, and gets in once it
+		// leaves
+		final Semaphore held = new Semaphore(0);
+		reader = new KThread(new Runnable() {
+			public void run() {
+				lock.acquireRead();
+				held.V();
+				ThreadedKernel.alarm.waitUntil(2000);
+				lock.releaseRead();
+			}
+		});
+		reader.setName("reader").fork();
+		held.P();
+
+		long start = Machine.timer().getTime();
+		Lib.assertTrue(!lock.tryAcquireWrite(500),
+				"tryAcquireWrite() did not time out.");
+		Lib.assertTrue(Machine.timer().getTime() - start >= 500,
+				"tryAcquireWrite() timed out too early.");
+
+		// giving up let other threads past
+		lock.acquireRead();
+		lock.releaseRead();
+
+		start = Machine.timer().getTime();
+		Lib.assertTrue(lock.tryAcquireWrite(100000), "tryAcquireWrite() failed.");
+		Lib.assertTrue(Machine.timer().getTime() - start < 100000,
+				"tryAcquireWrite() did not return when the readers left.");
+		lock.releaseWrite();
+
+		reader.join();
+	}
+
+	/**
+	 * Test that a thread waiting for a writer donates priority to it, and
+	 * that a writer waiting for readers does not donate to them. Must be run
+	 * with a scheduler that transfers priority.
+	 */
+	private static void donationSelfTest() {
+		final ReadWriteLock rw = new ReadWriteLock();
+		final Semaphore held = new Semaphore(0);
+		final int high = 6;
+
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireWrite();
+				held.V();
+				ThreadedKernel.alarm.waitUntil(1000);
+				rw.releaseWrite();
+			}
+		});
+		KThread reader = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireRead();
+				rw.releaseRead();
+			}
+		});
+		writer.setName("writer").fork();
+		held.P();
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(reader, high);
+		Machine.interrupt().restore(intStatus);
+
+		reader.setName("reader").fork();
+		ThreadedKernel.alarm.waitUntil(200);
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(writer) >= high,
+				"waiting reader did not donate to the writer.");
+		Machine.interrupt().restore(intStatus);
+
+		writer.join();
+		reader.join();
+
+		rw.acquireRead();
+		intStatus = Machine.interrupt().disable();
+		int priority = ThreadedKernel.scheduler.getEffectivePriority();
+		Machine.interrupt().restore(intStatus);
+
+		writer = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireWrite();
+				rw.releaseWrite();
+			}
+		});
+
+		intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(writer, high);
+		Machine.interrupt().restore(intStatus);
+
+		writer.setName("writer").fork();
+		ThreadedKernel.alarm.waitUntil(200);
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority() == priority,
+				"waiting writer donated to the readers.");
+		Machine.interrupt().restore(intStatus);
+
+		rw.releaseRead();
+		writer.join();
+	}
+
+	private class WriteLock extends Lock {
+		public void acquire() {
+			acquireWrite();
+		}
+
+		public boolean tryAcquire(long x) {
+			return tryAcquireWrite(x);
+		}
+
+		public void release() {
+			releaseWrite();
+		}
+
+		public boolean isHeldByCurrentThread() {
+			return isWriteHeldByCurrentThread();
+		}
+	}
+
+	private boolean writerPreference;
+
+	/** The number of threads holding this lock for reading. */
+	private int readers = 0;
+
+	/**
+	 * Held by the writer, and briefly by each reader on its way in, so every
+	 * thread that must wait for a writer waits here.
+	 */
+	private Lock gate = new Lock();
+
+	/** The writer waiting for the readers to finish, if any. */
+	private ThreadQueue drainQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	private Lock writeLock = new WriteLock();
+}
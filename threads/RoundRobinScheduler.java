@@ -2,15 +2,18 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-import java.util.Iterator;
-
 /**
  * A round-robin scheduler tracks waiting threads in FIFO queues, implemented
  * with linked lists. When a thread begins waiting for access, it is appended to
  * the end of a list. The next thread to receive access is always the first
  * thread in the list. This causes access to be given on a first-come
  * first-serve basis.
+ *
+ * <p>
+ * The lists are intrusive: each thread's scheduling state holds its links to
+ * its neighbours in the list it is waiting on (a thread waits on at most one
+ * queue at a time), so waiting never allocates memory, and a thread is
+ * removed from anywhere in a list in constant time.
  */
 public class RoundRobinScheduler extends Scheduler {
 	/**
@@ -29,6 +32,19 @@ public class RoundRobinScheduler extends Scheduler {
 		return new FifoQueue();
 	}
 
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	private ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
 	private class FifoQueue extends ThreadQueue {
 		/**
 		 * Add a thread to the end of the wait queue.
@@ -38,7 +54,17 @@ public class RoundRobinScheduler extends Scheduler {
 		public void waitForAccess(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			waitQueue.add(thread);
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.queue == null);
+
+			state.queue = this;
+			state.prev = last;
+			if (last == null)
+				first = state;
+			else
+				last.next = state;
+
+			last = state;
 		}
 
 		/**
@@ -50,10 +76,13 @@ public class RoundRobinScheduler extends Scheduler {
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			if (waitQueue.isEmpty())
+			if (first == null)
 				return null;
 
-			return (KThread) waitQueue.removeFirst();
+			ThreadState state = first;
+			unlink(state);
+
+			return state.thread;
 		}
 
 		/**
@@ -64,7 +93,24 @@ public class RoundRobinScheduler extends Scheduler {
 		public void acquire(KThread thread) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			Lib.assertTrue(waitQueue.isEmpty());
+			Lib.assertTrue(first == null);
+		}
+
+		/**
+		 * Remove a thread from anywhere in the queue.
+		 *
+		 * @param thread the thread to remove.
+		 * @return <tt>true</tt> if the thread was in the queue.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = (ThreadState) thread.schedulingState;
+			if (state == null || state.queue != this)
+				return false;
+
+			unlink(state);
+			return true;
 		}
 
 		/**
@@ -73,10 +119,81 @@ public class RoundRobinScheduler extends Scheduler {
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			for (Iterator i = waitQueue.iterator(); i.hasNext();)
-				System.out.print((KThread) i.next() + " ");
+			for (ThreadState state = first; state != null; state = state.next)
+				System.out.print(state.thread + " ");
+		}
+
+		/**
+		 * Unlink a waiting thread from the list.
+		 */
+		private void unlink(ThreadState state) {
+			if (state.prev == null)
+				first = state.next;
+			else
+				state.prev.next = state.next;
+
+			if (state.next == null)
+				last = state.prev;
+			else
+				state.next.prev = state.prev;
+
+			state.prev = state.next = null;
+			state.queue = null;
+		}
+
+		private ThreadState first = null;
+
+		private ThreadState last = null;
+	}
+
+	/**
+	 * Test that queues are first-come first-serve, and that a thread is removed
+	 * from the front, middle, or end of the queue it waits on, and from no
+	 * other.
+	 */
+	public static void selfTest() {
+		RoundRobinScheduler s = new RoundRobinScheduler();
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadQueue queue = s.newThreadQueue(false);
+		ThreadQueue other = s.newThreadQueue(false);
+		KThread[] threads = new KThread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("t" + i);
+			queue.waitForAccess(threads[i]);
 		}
 
-		private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+		Lib.assertTrue(!other.remove(threads[1]));
+		Lib.assertTrue(queue.remove(threads[1]) && !queue.remove(threads[1]));
+		Lib.assertTrue(queue.remove(threads[3]));
+		Lib.assertTrue(queue.remove(threads[0]));
+		queue.waitForAccess(threads[1]);
+		other.waitForAccess(threads[3]);
+
+		Lib.assertTrue(queue.nextThread() == threads[2]);
+		Lib.assertTrue(queue.nextThread() == threads[1]);
+		Lib.assertTrue(queue.nextThread() == null);
+		Lib.assertTrue(other.nextThread() == threads[3]);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The scheduling state of a thread: its links in the queue it is waiting
+	 * on.
+	 */
+	private class ThreadState {
+		ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/** The thread with which this object is associated. */
+		KThread thread;
+
+		/** The queue the thread is waiting on, or <tt>null</tt> if none. */
+		FifoQueue queue = null;
+
+		/** The neighbouring threads in that queue, or <tt>null</tt> if none. */
+		ThreadState prev = null, next = null;
 	}
 }
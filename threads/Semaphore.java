@@ -48,6 +48,29 @@ public class Semaphore {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically wait for this semaphore to become non-zero and decrement it,
+	 * giving up if that has not happened within <i>x</i> ticks.
+	 * 
+	 * @param x the maximum number of clock ticks to wait. If this is not
+	 * positive, do not wait at all.
+	 * @return <tt>true</tt> if the semaphore was decremented.
+	 */
+	public boolean P(long x) {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean decremented = true;
+
+		if (value > 0)
+			value--;
+		else if (x > 0)
+			decremented = ThreadedKernel.alarm.waitForAccess(waitQueue, x);
+		else
+			decremented = false;
+
+		Machine.interrupt().restore(intStatus);
+		return decremented;
+	}
+
 	/**
 	 * Atomically increment this semaphore and wake up at most one other thread
 	 * sleeping on this semaphore.
@@ -97,6 +120,28 @@ public class Semaphore {
 			ping.V();
 			pong.P();
 		}
+
+		// a timed P() gives up, or returns as soon as V() is called
+		final Semaphore timed = new Semaphore(0);
+
+		long start = Machine.timer().getTime();
+		Lib.assertTrue(!timed.P(1000), "P(long) did not time out.");
+		Lib.assertTrue(Machine.timer().getTime() - start >= 1000,
+				"P(long) timed out too early.");
+
+		KThread waker = new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(1000);
+				timed.V();
+			}
+		});
+		waker.setName("waker").fork();
+
+		start = Machine.timer().getTime();
+		Lib.assertTrue(timed.P(100000), "P(long) was not woken by V().");
+		Lib.assertTrue(Machine.timer().getTime() - start < 100000,
+				"P(long) was not woken early.");
+		waker.join();
 	}
 
 	private int value;
@@ -0,0 +1,586 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Arrays;
+
+/**
+ * A stride scheduler, which shares the CPU in proportion to tickets like a
+ * lottery scheduler, but deterministically.
+ *
+ * <p>
+ * Each thread has a <i>pass</i> value, which advances as the thread runs at a
+ * rate inversely proportional to its tickets (its <i>stride</i>). Every queue
+ * is a heap ordered by pass, and dequeues the thread with the least pass, so a
+ * thread with twice the tickets of another runs twice as often, with an error
+ * that never exceeds one stride. Pass is charged for the simulated ticks
+ * actually run, so a thread that yields early pays only for what it used.
+ *
+ * <p>
+ * Tickets are transferred through queues created with
+ * <i>transferPriority</i> set: the owner of such a queue (the thread that last
+ * acquired it, through <tt>acquire()</tt> or <tt>nextThread()</tt>) holds the
+ * tickets of all its waiters in addition to its own. As in the lottery
+ * scheduler, transferred tickets add.
+ *
+ * <p>
+ * A thread that starts waiting on a queue after having blocked (or a new
+ * thread) has its pass raised to at least that queue's minimum pass, so time
+ * spent blocked is not saved up. The minimum pass follows the least pass among
+ * the threads the queue dispatches, but never decreases.
+ *
+ * <p>
+ * Passes only ever grow, and may wrap around. They are compared by the sign of
+ * their difference, which stays correct as long as the passes being compared
+ * are within 2<sup>62</sup> of each other. Raising new waiters to the minimum
+ * pass keeps them that close.
+ */
+public class StrideScheduler extends Scheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * tickets from waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) getThreadState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getThreadState(thread).effectiveTickets,
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		ThreadState state = getThreadState(thread);
+
+		state.addTickets(priority - state.tickets);
+		state.tickets = priority;
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * The pass a thread holding one ticket advances by for each tick it runs.
+	 */
+	private static final long stride1 = 1L << 30;
+
+	/**
+	 * Return <tt>true</tt> if pass <i>a</i> comes before pass <i>b</i>,
+	 * allowing for wraparound.
+	 */
+	private static boolean passBefore(long a, long b) {
+		return a - b < 0;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Charge the current thread for the time it has run since it was last
+	 * charged, unless it has already queued itself to yield.
+	 */
+	private void chargeCurrentThread() {
+		KThread current = KThread.currentThread();
+		if (current == null)
+			return;
+
+		ThreadState state = getThreadState(current);
+		if (!state.queued)
+			state.charge();
+	}
+
+	protected class StrideQueue extends ThreadQueue {
+		StrideQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			chargeCurrentThread();
+
+			ThreadState state = getThreadState(thread);
+			Lib.assertTrue(state.waitQueue == null);
+
+			if (thread != KThread.currentThread()
+					&& passBefore(state.pass, minPass))
+				state.pass = minPass;
+
+			if (size == heap.length)
+				heap = Arrays.copyOf(heap, size * 2);
+
+			siftUp(size++, state);
+			state.queued = true;
+			state.waitQueue = this;
+
+			totalTickets += state.effectiveTickets;
+			if (transferPriority && owner != null)
+				owner.addTickets(state.effectiveTickets);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			chargeCurrentThread();
+
+			if (size == 0) {
+				setOwner(null);
+				return null;
+			}
+
+			ThreadState state = heap[0];
+			remove(state);
+
+			if (passBefore(minPass, state.pass))
+				minPass = state.pass;
+			state.lastCharged = Machine.timer().getTime();
+
+			setOwner(state);
+
+			return state.thread;
+		}
+
+		/**
+		 * Remove a thread from the heap, taking back the tickets it was
+		 * transferring to the owner.
+		 *
+		 * @param thread the thread to remove.
+		 * @return <tt>true</tt> if the thread was in the heap.
+		 */
+		public boolean remove(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.waitQueue != this)
+				return false;
+
+			remove(state);
+			return true;
+		}
+
+		/**
+		 * The specified thread has received exclusive access, without using
+		 * <tt>waitForAccess()</tt> or <tt>nextThread()</tt>, and becomes the
+		 * owner of this queue.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			setOwner(getThreadState(thread));
+		}
+
+		/**
+		 * Print out the contents of the queue, least pass first.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState[] sorted = Arrays.copyOf(heap, size);
+			Arrays.sort(sorted, new Comparator<ThreadState>() {
+				public int compare(ThreadState a, ThreadState b) {
+					return before(a, b) ? -1 : 1;
+				}
+			});
+
+			for (int i = 0; i < sorted.length; i++)
+				System.out.print(sorted[i].thread + "(" + sorted[i].pass + ") ");
+		}
+
+		/**
+		 * Remove a thread from the heap, taking back the tickets it was
+		 * transferring to the owner.
+		 *
+		 * @param state the thread to remove.
+		 */
+		private void remove(ThreadState state) {
+			int index = state.index;
+			ThreadState last = heap[--size];
+			heap[size] = null;
+
+			if (index < size) {
+				siftDown(index, last);
+				if (heap[index] == last)
+					siftUp(index, last);
+			}
+
+			state.index = -1;
+			state.queued = false;
+			state.waitQueue = null;
+
+			totalTickets -= state.effectiveTickets;
+			if (transferPriority && owner != null)
+				owner.addTickets(-state.effectiveTickets);
+		}
+
+		private void siftUp(int index, ThreadState state) {
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				place(index, heap[parent]);
+				index = parent;
+			}
+
+			place(index, state);
+		}
+
+		private void siftDown(int index, ThreadState state) {
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], state))
+					break;
+
+				place(index, heap[child]);
+				index = child;
+			}
+
+			place(index, state);
+		}
+
+		private void place(int index, ThreadState state) {
+			heap[index] = state;
+			state.index = index;
+		}
+
+		/**
+		 * Return <tt>true</tt> if <i>a</i> should be dequeued before <i>b</i>:
+		 * it has a lesser pass, or the same pass and a lower id.
+		 */
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.pass != b.pass)
+				return passBefore(a.pass, b.pass);
+
+			return a.id < b.id;
+		}
+
+		/**
+		 * Make the specified thread the owner of this queue, moving the
+		 * waiting threads' tickets from the previous owner to the new one.
+		 *
+		 * @param state the new owner, or <tt>null</tt> if none.
+		 */
+		private void setOwner(ThreadState state) {
+			if (!transferPriority)
+				return;
+
+			if (owner != null)
+				owner.addTickets(-totalTickets);
+
+			owner = state;
+
+			if (owner != null)
+				owner.addTickets(totalTickets);
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The waiting threads, as a binary heap ordered by pass. */
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
+
+		/** The total effective tickets of the waiting threads. */
+		private long totalTickets = 0;
+
+		/**
+		 * The minimum pass of this queue. Each dispatch raises it to the pass
+		 * of the dispatched thread, the least in the queue, but never lowers
+		 * it.
+		 */
+		private long minPass = 0;
+
+		/** The thread that owns this queue, if tickets are transferred. */
+		private ThreadState owner = null;
+	}
+
+	/**
+	 * Test that threads are dispatched in proportion to their tickets, that a
+	 * new thread is raised to a queue's minimum pass, that tickets are
+	 * transferred along a chain of owners and follow changes, and that passes
+	 * are ordered correctly across wraparound. Must be run with a
+	 * <tt>StrideScheduler</tt> as the kernel's scheduler.
+	 */
+	public static void selfTest() {
+		StrideScheduler s = (StrideScheduler) ThreadedKernel.scheduler;
+
+		// time stands still while interrupts are disabled, so each dispatch
+		// is charged a quantum by hand
+		boolean intStatus = Machine.interrupt().disable();
+		long time = Machine.timer().getTime();
+		final int quantum = 10;
+
+		StrideQueue queue = (StrideQueue) s.newThreadQueue(false);
+		KThread[] threads = new KThread[3];
+		int[] runs = new int[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("t" + i);
+			s.setPriority(threads[i], i + 1);
+			queue.waitForAccess(threads[i]);
+		}
+
+		for (int n = 0; n < 60; n++) {
+			KThread thread = queue.nextThread();
+			for (int i = 0; i < threads.length; i++) {
+				if (threads[i] == thread)
+					runs[i]++;
+			}
+
+			ThreadState state = s.getThreadState(thread);
+			state.lastCharged = time - quantum;
+			state.charge();
+			queue.waitForAccess(thread);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			Lib.assertTrue(Math.abs(runs[i] - 10 * (i + 1)) <= 1,
+					"dispatches not in proportion to tickets");
+
+		// a new thread catches up to the queue's minimum pass
+		KThread late = new KThread().setName("late");
+		queue.waitForAccess(late);
+		Lib.assertTrue(queue.minPass > 0
+				&& s.getThreadState(late).pass == queue.minPass,
+				"new thread did not catch up");
+
+		// tickets flow from waiters to the owner, and on to the owner of a
+		// queue it waits on
+		StrideQueue lockQueue = (StrideQueue) s.newThreadQueue(true);
+		StrideQueue joinQueue = (StrideQueue) s.newThreadQueue(true);
+		KThread owner = new KThread().setName("owner");
+		KThread holder = new KThread().setName("holder");
+		KThread waiter1 = new KThread().setName("waiter1");
+		KThread waiter2 = new KThread().setName("waiter2");
+		s.setPriority(waiter1, 3);
+		s.setPriority(waiter2, 4);
+
+		lockQueue.acquire(owner);
+		lockQueue.waitForAccess(waiter1);
+		lockQueue.waitForAccess(waiter2);
+		joinQueue.acquire(holder);
+		joinQueue.waitForAccess(owner);
+		Lib.assertTrue(s.getThreadState(owner).effectiveTickets == 8
+				&& s.getThreadState(holder).effectiveTickets == 9,
+				"tickets not transferred");
+
+		s.setPriority(waiter1, 5);
+		Lib.assertTrue(s.getThreadState(owner).effectiveTickets == 10
+				&& s.getThreadState(holder).effectiveTickets == 11,
+				"ticket change not transferred");
+
+		// the next thread to acquire the queue takes the other's tickets
+		Lib.assertTrue(lockQueue.nextThread() == waiter1);
+		Lib.assertTrue(s.getThreadState(waiter1).effectiveTickets == 9
+				&& s.getThreadState(owner).effectiveTickets == 1
+				&& s.getThreadState(holder).effectiveTickets == 2,
+				"tickets not moved to the new owner");
+
+		// passes that have wrapped around still come after those that have
+		// not
+		Lib.assertTrue(passBefore(Long.MAX_VALUE, Long.MIN_VALUE));
+
+		StrideQueue wrapQueue = (StrideQueue) s.newThreadQueue(false);
+		KThread before = new KThread().setName("before");
+		KThread after = new KThread().setName("after");
+		wrapQueue.minPass = Long.MAX_VALUE - 2 * stride1;
+		s.getThreadState(before).pass = Long.MAX_VALUE - stride1;
+		s.getThreadState(after).pass = Long.MAX_VALUE + 2 * stride1;
+		wrapQueue.waitForAccess(after);
+		wrapQueue.waitForAccess(before);
+		Lib.assertTrue(wrapQueue.nextThread() == before);
+		Lib.assertTrue(wrapQueue.nextThread() == after);
+		Lib.assertTrue(wrapQueue.minPass == s.getThreadState(after).pass,
+				"minimum pass did not follow across wraparound");
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * The scheduling state of a thread.
+	 */
+	protected class ThreadState {
+		/**
+		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+		 * specified thread.
+		 *
+		 * @param thread the thread this state belongs to.
+		 */
+		public ThreadState(KThread thread) {
+			this.thread = thread;
+			this.id = numThreadStates++;
+		}
+
+		/**
+		 * Advance the pass of the associated thread by its stride for each
+		 * tick it has run since it was last charged. Must only be called for
+		 * the running thread, which is not in any queue. The product cannot
+		 * overflow unless a thread runs for 2<sup>33</sup> ticks without being
+		 * charged, and timer interrupts charge it every few hundred.
+		 */
+		void charge() {
+			long time = Machine.timer().getTime();
+
+			pass += (time - lastCharged) * stride1 / effectiveTickets;
+			lastCharged = time;
+		}
+
+		/**
+		 * Add to the effective tickets of the associated thread, and of each
+		 * thread it is transferring tickets to, directly or indirectly. Stops
+		 * if the chain of owners loops back on itself, which can only happen
+		 * if the threads are deadlocked. A thread's pass does not depend on its
+		 * tickets, so no queue needs to be reordered.
+		 *
+		 * @param delta the number of tickets to add (may be negative).
+		 */
+		void addTickets(long delta) {
+			if (delta == 0)
+				return;
+
+			long mark = ++numTransfers;
+
+			for (ThreadState state = this; state != null
+					&& state.lastTransfer != mark;) {
+				state.lastTransfer = mark;
+
+				// charge time run so far at the old stride
+				if (state.thread == KThread.currentThread() && !state.queued)
+					state.charge();
+
+				state.effectiveTickets += delta;
+
+				StrideQueue queue = state.waitQueue;
+				if (queue == null)
+					break;
+
+				queue.totalTickets += delta;
+				state = queue.transferPriority ? queue.owner : null;
+			}
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets held by the associated thread itself. */
+		protected long tickets = priorityDefault;
+
+		/** The tickets held by the associated thread, including transfers. */
+		protected long effectiveTickets = priorityDefault;
+
+		/** The pass of the associated thread. */
+		long pass = 0;
+
+		/**
+		 * <tt>true</tt> if the associated thread is in a queue, so its pass
+		 * must not change.
+		 */
+		boolean queued = false;
+
+		/** The queue the associated thread is waiting on, if any. */
+		StrideQueue waitQueue = null;
+
+		/** The associated thread's position in <tt>waitQueue</tt>'s heap. */
+		int index = -1;
+
+		/** When the associated thread was last charged or dispatched. */
+		long lastCharged = Machine.timer().getTime();
+
+		/** The last ticket transfer that reached this thread. */
+		long lastTransfer = 0;
+
+		/** Breaks ties between equal passes. */
+		final long id;
+	}
+
+	private long numThreadStates = 0;
+
+	/** The number of ticket transfers so far, used to detect loops. */
+	private long numTransfers = 0;
+}
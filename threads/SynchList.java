@@ -50,6 +50,33 @@ public class SynchList {
 		return o;
 	}
 
+	/**
+	 * Remove an object from the front of the queue, waiting at most <i>x</i>
+	 * ticks for the queue to become non-empty.
+	 * 
+	 * @param x the maximum number of clock ticks to wait.
+	 * @return the element removed from the front of the queue, or
+	 * <tt>null</tt> if the queue was still empty after <i>x</i> ticks.
+	 */
+	public Object removeFirst(long x) {
+		long deadline = Machine.timer().getTime() + x;
+		Object o = null;
+
+		lock.acquire();
+		while (list.isEmpty()) {
+			long remaining = deadline - Machine.timer().getTime();
+			if (remaining <= 0)
+				break;
+
+			listEmpty.sleepFor(remaining);
+		}
+		if (!list.isEmpty())
+			o = list.removeFirst();
+		lock.release();
+
+		return o;
+	}
+
 	private static class PingTest implements Runnable {
 		PingTest(SynchList ping, SynchList pong) {
 			this.ping = ping;
@@ -80,6 +107,28 @@ public class SynchList {
 			ping.add(o);
 			Lib.assertTrue(pong.removeFirst() == o);
 		}
+
+		// a timed removeFirst() gives up, or returns as soon as an object
+		// is added
+		final SynchList timed = new SynchList();
+		final Integer o = Integer.valueOf(10);
+
+		long start = Machine.timer().getTime();
+		Lib.assertTrue(timed.removeFirst(1000) == null);
+		Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+
+		KThread adder = new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(1000);
+				timed.add(o);
+			}
+		});
+		adder.setName("adder").fork();
+
+		start = Machine.timer().getTime();
+		Lib.assertTrue(timed.removeFirst(100000) == o);
+		Lib.assertTrue(Machine.timer().getTime() - start < 100000);
+		adder.join();
 	}
 
 	private LinkedList<Object> list;
@@ -90,6 +90,19 @@ public abstract class ThreadQueue {
 	 */
 	public abstract void acquire(KThread thread);
 
+	/**
+	 * Notify this thread queue that the specified thread has stopped waiting
+	 * for access without receiving it, for example because a timed wait ran
+	 * out. If the thread is waiting on this queue, remove it, so that it will
+	 * not be returned by <tt>nextThread()</tt>. If the limited access object
+	 * transfers priority, the thread no longer donates priority to the
+	 * thread that has access.
+	 * 
+	 * @param thread the thread that has stopped waiting.
+	 * @return <tt>true</tt> if the thread was waiting on this queue.
+	 */
+	public abstract boolean remove(KThread thread);
+
 	/**
 	 * Print out all the threads waiting for access, in no particular order.
 	 */
@@ -46,15 +46,36 @@ public class ThreadedKernel extends Kernel {
 	 * here.
 	 */
 	public void selfTest() {
+		Interrupt.selfTest();
 		KThread.selfTest();
 		Semaphore.selfTest();
+		Lock.selfTest();
+		ReadWriteLock.selfTest();
 		SynchList.selfTest();
 		Condition2.selfTest();
 		Alarm.selfTest();
 		Communicator.selfTest();
+		RoundRobinScheduler.selfTest();
+		PriorityScheduler.selfTest();
+		LotteryScheduler.selfTest();
+		EDFScheduler.selfTest();
+		PeriodicTask.selfTest();
+		if (scheduler instanceof CFSScheduler) {
+			CFSScheduler.selfTest();
+		}
+		if (scheduler instanceof StrideScheduler) {
+			StrideScheduler.selfTest();
+		}
+		if (scheduler instanceof MLFQScheduler) {
+			MLFQScheduler.selfTest();
+		}
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
+
+		int yieldIterations = Config.getInteger("ThreadedKernel.yieldBenchmark", 0);
+		if (yieldIterations > 0)
+			KThread.yieldBenchmark(yieldIterations);
 	}
 
 	/**
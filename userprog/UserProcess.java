@@ -151,7 +151,7 @@ public class UserProcess {
 				 int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 	
 	int amount = 0;
 
@@ -165,8 +165,7 @@ public class UserProcess {
 	    if (ppn == -1)
 		break;
 
-	    System.arraycopy(memory, ppn*pageSize + off, data, offset,
-			     transfer);
+	    memory.read(ppn*pageSize + off, data, offset, transfer);
 
 	    unpinVirtualPage(vpn);
 	    
@@ -210,7 +209,7 @@ public class UserProcess {
 				  int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
+	PhysicalMemory memory = Machine.processor().getPhysicalMemory();
 	
 	int amount = 0;
 
@@ -224,8 +223,7 @@ public class UserProcess {
 	    if (ppn == -1)
 		break;
 
-	    System.arraycopy(data, offset, memory, ppn*pageSize + off,
-			     transfer);
+	    memory.write(ppn*pageSize + off, data, offset, transfer);
 	    
 	    unpinVirtualPage(vpn);
 	    
@@ -122,7 +122,7 @@ public class VMKernel extends UserKernel {
 		
 		entry.valid = false ;
 		
-		memoryLock.release();
+		memorylock.release();
 
 		return toEvict;
 	}
@@ -163,7 +163,7 @@ public class VMKernel extends UserKernel {
 		public Swap() {
 		}
 		private void swapIn(int spn, int ppn, int pid, int vpn) {
-			swapLock.acquire();
+			swapLock.acquireWrite();
 			byte[] memory = Machine.processor().getMemory();
 			ipt[ppn].pinNum++;
 			pinCount++;
@@ -171,15 +171,18 @@ public class VMKernel extends UserKernel {
 					* Processor.pageSize, Processor.pageSize);
 			swapPageTable.remove(new SwapKey(vpn, pid));
 			freeSwapPages.add(new Integer(spn));
-			swapLock.release();
+			swapLock.releaseWrite();
 		}
 		
 		private boolean isInSwap(int vpn, int pid){
-			return swapPageTable.containsKey(new SwapKey(vpn, pid));
+			swapLock.acquireRead();
+			boolean inSwap = swapPageTable.containsKey(new SwapKey(vpn, pid));
+			swapLock.releaseRead();
+			return inSwap;
 		}
 		
 		private int swapOut(int ppn) {
-			swapLock.acquire();
+			swapLock.acquireWrite();
 			int spn;
 			int size = freeSwapPages.size();
 			if (size == 0){
@@ -194,7 +197,7 @@ public class VMKernel extends UserKernel {
 			file.write(spn * Processor.pageSize, memory, ppn
 					* Processor.pageSize, Processor.pageSize);
 			
-			swapLock.release();
+			swapLock.releaseWrite();
 			return spn;
 		}
 	
@@ -203,7 +206,8 @@ public class VMKernel extends UserKernel {
 			// TODO: uncomment ThreadedKernel.fileSystem.remove("swapperinos");
 		}
 
-		Lock swapLock = new Lock();
+		/** Guards the swap map; lookups only read it. */
+		ReadWriteLock swapLock = new ReadWriteLock();
 	}
 	
 	